@@ -16,6 +16,9 @@ dependencies {
     implementation("com.crossbowffs.remotepreferences:remotepreferences:0.8")
     compileOnly("de.robv.android.xposed:api:82")
     compileOnly("de.robv.android.xposed:api:82:sources")
+    testImplementation("junit:junit:4.13.2")
+    testImplementation("androidx.test:core:1.6.1")
+    testImplementation("org.robolectric:robolectric:4.14.1")
 }
 
 android {
@@ -32,7 +35,7 @@ android {
         minSdk = 19
         targetSdk = 34
         buildConfigField("int", "MODULE_VERSION", "19")
-        buildConfigField("int", "DATABASE_VERSION", "12")
+        buildConfigField("int", "DATABASE_VERSION", "16")
         buildConfigField("int", "BACKUP_VERSION", "3")
         buildConfigField("String", "LOG_TAG", "\"NekoSMS\"")
     }
@@ -4,20 +4,25 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.Html;
 import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.*;
+import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.widget.SearchView;
 import androidx.fragment.app.Fragment;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.CursorLoader;
 import androidx.loader.content.Loader;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.crossbowffs.nekosms.BuildConfig;
 import com.crossbowffs.nekosms.R;
 import com.crossbowffs.nekosms.consts.BroadcastConsts;
@@ -32,10 +37,19 @@ import com.crossbowffs.nekosms.widget.ListRecyclerView;
 public class BlockedMessagesFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, OnNewArgumentsListener {
     private static final boolean DEBUG_MODE = BuildConfig.DEBUG;
     public static final String ARG_MESSAGE_URI = "message_uri";
+    private static final int LIVE_LOADER_ID = 0;
+    private static final int ARCHIVE_LOADER_ID = 1;
+    private static final int ARCHIVE_PAGE_SIZE = 100;
+    private static final String STATE_ARCHIVE_LIMIT = "archive_limit";
 
     private ListRecyclerView mRecyclerView;
-    private View mEmptyView;
+    private TextView mEmptyView;
     private BlockedMessagesAdapter mAdapter;
+    private String mSearchQuery;
+    private Cursor mLiveCursor;
+    private Cursor mArchiveCursor;
+    private int mArchiveLimit;
+    private boolean mArchiveLoading;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -58,9 +72,22 @@ public class BlockedMessagesFragment extends Fragment implements LoaderManager.L
 
         mAdapter = new BlockedMessagesAdapter(this);
         LoaderManager loaderManager = LoaderManager.getInstance(this);
-        loaderManager.initLoader(0, null, this);
+        loaderManager.initLoader(LIVE_LOADER_ID, null, this);
+        if (savedInstanceState != null) {
+            mArchiveLimit = savedInstanceState.getInt(STATE_ARCHIVE_LIMIT);
+        }
+        if (mArchiveLimit > 0) {
+            mArchiveLoading = true;
+            loaderManager.initLoader(ARCHIVE_LOADER_ID, null, this);
+        }
         mRecyclerView.setEmptyView(mEmptyView);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                loadMoreArchivedMessages();
+            }
+        });
         registerForContextMenu(mRecyclerView);
 
         activity.setTitle(R.string.blocked_messages);
@@ -70,6 +97,12 @@ public class BlockedMessagesFragment extends Fragment implements LoaderManager.L
         onNewArguments(getArguments());
     }
 
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_ARCHIVE_LIMIT, mArchiveLimit);
+    }
+
     @Override
     public void onNewArguments(Bundle args) {
         if (args == null) {
@@ -116,6 +149,23 @@ public class BlockedMessagesFragment extends Fragment implements LoaderManager.L
         if (DEBUG_MODE) {
             inflater.inflate(R.menu.options_debug, menu);
         }
+
+        MenuItem searchItem = menu.findItem(R.id.menu_item_search_blocked);
+        SearchView searchView = (SearchView)searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_messages));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setSearchQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -132,12 +182,95 @@ public class BlockedMessagesFragment extends Fragment implements LoaderManager.L
         }
     }
 
+    private void setSearchQuery(String query) {
+        if (TextUtils.isEmpty(query)) {
+            query = null;
+        }
+        if (TextUtils.equals(query, mSearchQuery)) {
+            return;
+        }
+
+        mSearchQuery = query;
+        if (query == null) {
+            mEmptyView.setText(R.string.blocked_messages_empty_text);
+        } else {
+            mEmptyView.setText(R.string.search_messages_empty_text);
+        }
+        LoaderManager.getInstance(this).restartLoader(LIVE_LOADER_ID, null, this);
+    }
+
+    private void loadMoreArchivedMessages() {
+        // Archived messages are listed after the others, a page at a
+        // time as the list is scrolled to the bottom, but aren't
+        // included in search results
+        if (mSearchQuery != null || mLiveCursor == null || mArchiveLoading) {
+            return;
+        }
+        if (mRecyclerView.canScrollVertically(1)) {
+            return;
+        }
+
+        // The last page was not full, so there is nothing left
+        if (mArchiveCursor != null && mArchiveCursor.getCount() < mArchiveLimit) {
+            return;
+        }
+
+        mArchiveLimit += ARCHIVE_PAGE_SIZE;
+        mArchiveLoading = true;
+
+        // Reuse the loader rather than restarting it, so the current
+        // page stays in the list until the bigger one has loaded
+        LoaderManager loaderManager = LoaderManager.getInstance(this);
+        Loader<Cursor> loader = loaderManager.getLoader(ARCHIVE_LOADER_ID);
+        if (loader == null) {
+            loaderManager.initLoader(ARCHIVE_LOADER_ID, null, this);
+        } else {
+            ((CursorLoader)loader).setUri(getArchiveUri());
+            loader.onContentChanged();
+        }
+    }
+
+    private Uri getArchiveUri() {
+        return DatabaseContract.BlockedMessages.ARCHIVE_URI.buildUpon()
+            .appendQueryParameter(DatabaseContract.BlockedMessages.QUERY_PARAM_LIMIT, String.valueOf(mArchiveLimit))
+            .build();
+    }
+
+    private void updateCursor() {
+        Cursor cursor = mLiveCursor;
+        if (mLiveCursor != null && mArchiveCursor != null && mSearchQuery == null) {
+            cursor = new MergeCursor(new Cursor[] {mLiveCursor, mArchiveCursor});
+        }
+
+        // The cursors belong to the loaders, which close them
+        mAdapter.swapCursor(cursor);
+        if (mRecyclerView.getAdapter() == null) {
+            mRecyclerView.setAdapter(mAdapter);
+        }
+
+        // If the list doesn't fill the screen, there is nothing
+        // to scroll, so check whether to load more once it's laid out
+        mRecyclerView.post(() -> loadMoreArchivedMessages());
+    }
+
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        Uri uri;
+        if (id == ARCHIVE_LOADER_ID) {
+            // Only the archived messages are reloaded when they change,
+            // so new messages don't inflate the archive all over again
+            uri = getArchiveUri();
+        } else if (mSearchQuery != null) {
+            uri = DatabaseContract.BlockedMessages.SEARCH_URI.buildUpon()
+                .appendQueryParameter(DatabaseContract.BlockedMessages.QUERY_PARAM_SEARCH, mSearchQuery)
+                .build();
+        } else {
+            uri = DatabaseContract.BlockedMessages.CONTENT_URI;
+        }
         return new CursorLoader(
             requireContext(),
-            DatabaseContract.BlockedMessages.CONTENT_URI,
+            uri,
             DatabaseContract.BlockedMessages.ALL, null, null,
             DatabaseContract.BlockedMessages.TIME_SENT + " DESC"
         );
@@ -145,16 +278,28 @@ public class BlockedMessagesFragment extends Fragment implements LoaderManager.L
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
-        mAdapter.changeCursor(data);
-        if (mRecyclerView.getAdapter() == null) {
-            mRecyclerView.setAdapter(mAdapter);
+        if (loader.getId() == ARCHIVE_LOADER_ID) {
+            mArchiveCursor = data;
+            mArchiveLoading = false;
+        } else {
+            mLiveCursor = data;
         }
+        updateCursor();
     }
 
     @Override
     public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        mRecyclerView.setAdapter(null);
-        mAdapter.changeCursor(null);
+        if (loader.getId() == ARCHIVE_LOADER_ID) {
+            mArchiveCursor = null;
+            mArchiveLoading = false;
+            if (mLiveCursor != null) {
+                updateCursor();
+            }
+        } else {
+            mLiveCursor = null;
+            mRecyclerView.setAdapter(null);
+            mAdapter.swapCursor(null);
+        }
     }
 
     private void clearAllMessages() {
@@ -73,6 +73,30 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
         BlockedSmsLoader.get().setSeenStatus(context, messageUri, true);
     }
 
+    private void onPatternDisabled(Context context, Intent intent) {
+        String pattern = intent.getStringExtra(BroadcastConsts.EXTRA_PATTERN);
+        if (pattern == null) {
+            return;
+        }
+
+        NotificationHelper.displayPatternDisabledNotification(context, pattern);
+    }
+
+    private void onPruneMessages(Context context) {
+        // This may take a while, so do it off the main thread
+        final PendingResult result = goAsync();
+        final Context appContext = context.getApplicationContext();
+        new Thread(() -> {
+            try {
+                RetentionHelper.pruneMessages(appContext);
+            } catch (Exception e) {
+                Xlog.e("Failed to prune blocked messages", e);
+            } finally {
+                result.finish();
+            }
+        }).start();
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
@@ -93,6 +117,12 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
         case BroadcastConsts.ACTION_DISMISS_NOTIFICATION:
             onDismissNotification(context, intent);
             break;
+        case BroadcastConsts.ACTION_PRUNE_MESSAGES:
+            onPruneMessages(context);
+            break;
+        case BroadcastConsts.ACTION_PATTERN_DISABLED:
+            onPatternDisabled(context, intent);
+            break;
         }
     }
 }
@@ -11,5 +11,9 @@ public class NekoSmsApplication extends Application {
         // Enroll in dynamic colors if available; otherwise fall back to custom
         // theme specified in resources
         DynamicColors.applyToActivitiesIfAvailable(this);
+
+        // The app process is started whenever a message is blocked,
+        // so this is enough to keep the alarm set across reboots
+        RetentionHelper.schedulePruning(this);
     }
 }
@@ -27,6 +27,11 @@ import com.crossbowffs.nekosms.utils.Xlog;
 
 public final class NotificationHelper {
     private static final String NOTIFICATION_CHANNEL = "blocked_message";
+    private static final String WARNING_NOTIFICATION_CHANNEL = "filter_warning";
+
+    // Blocked message notifications use the message ID, which is
+    // never 0 (IDs start at 1), so this can't collide with them
+    private static final int PATTERN_DISABLED_NOTIFICATION_ID = 0;
 
     private NotificationHelper() { }
 
@@ -132,14 +137,47 @@ public final class NotificationHelper {
         notificationManager.notify(uriToNotificationId(messageUri), notification);
     }
 
+    public static void displayPatternDisabledNotification(Context context, String pattern) {
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            Xlog.e("Do not have permission to post notifications");
+            return;
+        }
+
+        // The app may not have been opened since the warning
+        // channel was added, so make sure it exists
+        createNotificationChannel(context);
+
+        Intent viewIntent = new Intent(context, MainActivity.class);
+        PendingIntent viewPendingIntent = PendingIntent.getActivity(context, 0, viewIntent, PendingIntent.FLAG_IMMUTABLE);
+        String text = context.getString(R.string.format_notification_pattern_disabled, pattern);
+
+        Notification notification = new NotificationCompat.Builder(context, WARNING_NOTIFICATION_CHANNEL)
+            .setSmallIcon(R.drawable.ic_warning_24dp)
+            .setContentTitle(context.getString(R.string.notification_pattern_disabled_title))
+            .setContentText(text)
+            .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+            .setContentIntent(viewPendingIntent)
+            .setCategory(NotificationCompat.CATEGORY_ERROR)
+            .setAutoCancel(true)
+            .setColor(ContextCompat.getColor(context, R.color.main))
+            .build();
+
+        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+        notificationManager.notify(PATTERN_DISABLED_NOTIFICATION_ID, notification);
+    }
+
     public static void createNotificationChannel(Context context) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
             return;
         }
 
-        String name = context.getString(R.string.channel_blocked_messages);
         NotificationManager notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        String name = context.getString(R.string.channel_blocked_messages);
         NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL, name, NotificationManager.IMPORTANCE_DEFAULT);
         notificationManager.createNotificationChannel(channel);
+
+        String warningName = context.getString(R.string.channel_filter_warnings);
+        NotificationChannel warningChannel = new NotificationChannel(WARNING_NOTIFICATION_CHANNEL, warningName, NotificationManager.IMPORTANCE_DEFAULT);
+        notificationManager.createNotificationChannel(warningChannel);
     }
 }
@@ -0,0 +1,91 @@
+package com.crossbowffs.nekosms.app;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import com.crossbowffs.nekosms.consts.BroadcastConsts;
+import com.crossbowffs.nekosms.consts.PreferenceConsts;
+import com.crossbowffs.nekosms.loader.BlockedSmsLoader;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+public final class RetentionHelper {
+    private static final long PRUNE_INTERVAL_MS = AlarmManager.INTERVAL_DAY;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long MEGABYTE = 1024 * 1024;
+
+    // Archiving and pruning share this much time, so that the whole
+    // thing fits comfortably within the broadcast receiver timeout
+    private static final long MAX_RUN_TIME_MS = 20 * 1000;
+
+    private RetentionHelper() { }
+
+    private static Intent createPruneIntent(Context context) {
+        Intent intent = new Intent(context, BlockedSmsReceiver.class);
+        intent.setAction(BroadcastConsts.ACTION_PRUNE_MESSAGES);
+        return intent;
+    }
+
+    public static void schedulePruning(Context context) {
+        // Don't reschedule the alarm if it's already set, otherwise
+        // it would never go off if the app is started often enough
+        Intent intent = createPruneIntent(context);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE) != null) {
+            return;
+        }
+
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(
+            AlarmManager.ELAPSED_REALTIME,
+            SystemClock.elapsedRealtime() + PRUNE_INTERVAL_MS,
+            PRUNE_INTERVAL_MS,
+            pendingIntent);
+    }
+
+    public static void pruneNow(Context context) {
+        context.sendBroadcast(createPruneIntent(context));
+    }
+
+    private static long getLongPref(SharedPreferences prefs, String key, String defValue) {
+        try {
+            return Long.parseLong(prefs.getString(key, defValue));
+        } catch (NumberFormatException e) {
+            Xlog.e("Invalid value for preference: %s", key, e);
+            return 0;
+        }
+    }
+
+    // Must not be called on the main thread
+    public static void pruneMessages(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PreferenceConsts.FILE_MAIN, Context.MODE_PRIVATE);
+        long deadline = SystemClock.elapsedRealtime() + MAX_RUN_TIME_MS;
+
+        // Archive first, so that the count and size limits only
+        // apply to what is left in the database
+        long archiveAgeDays = getLongPref(prefs, PreferenceConsts.KEY_RETENTION_ARCHIVE_AGE, PreferenceConsts.KEY_RETENTION_ARCHIVE_AGE_DEFAULT);
+        if (archiveAgeDays > 0) {
+            Xlog.i("Archiving blocked messages (archive age: %d days)", archiveAgeDays);
+            BlockedSmsLoader.get().archive(context, archiveAgeDays * DAY_MS, MAX_RUN_TIME_MS);
+        }
+
+        long maxAgeDays = getLongPref(prefs, PreferenceConsts.KEY_RETENTION_MAX_AGE, PreferenceConsts.KEY_RETENTION_MAX_AGE_DEFAULT);
+        long maxCount = getLongPref(prefs, PreferenceConsts.KEY_RETENTION_MAX_COUNT, PreferenceConsts.KEY_RETENTION_MAX_COUNT_DEFAULT);
+        long maxSizeMb = getLongPref(prefs, PreferenceConsts.KEY_RETENTION_MAX_SIZE, PreferenceConsts.KEY_RETENTION_MAX_SIZE_DEFAULT);
+        if (maxAgeDays <= 0 && maxCount <= 0 && maxSizeMb <= 0) {
+            return;
+        }
+
+        long remainingMs = deadline - SystemClock.elapsedRealtime();
+        if (remainingMs <= 0) {
+            Xlog.i("Out of time, will prune blocked messages next time");
+            return;
+        }
+
+        Xlog.i("Pruning blocked messages (max age: %d days, max count: %d, max size: %d MB)", maxAgeDays, maxCount, maxSizeMb);
+        BlockedSmsLoader.get().prune(context, maxAgeDays * DAY_MS, maxCount, maxSizeMb * MEGABYTE, remainingMs);
+    }
+}
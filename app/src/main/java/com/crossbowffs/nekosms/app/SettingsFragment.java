@@ -73,6 +73,19 @@ public class SettingsFragment extends PreferenceFragmentCompat implements OnNewA
             });
         }
 
+        // History
+        addPreferencesFromResource(R.xml.settings_retention);
+        Preference.OnPreferenceChangeListener retentionListener = (preference, newValue) -> {
+            // Apply the new limits right away. The broadcast is handled
+            // after this returns, by which point the value is saved.
+            RetentionHelper.pruneNow(requireContext());
+            return true;
+        };
+        requirePreference(PreferenceConsts.KEY_RETENTION_MAX_AGE).setOnPreferenceChangeListener(retentionListener);
+        requirePreference(PreferenceConsts.KEY_RETENTION_MAX_COUNT).setOnPreferenceChangeListener(retentionListener);
+        requirePreference(PreferenceConsts.KEY_RETENTION_MAX_SIZE).setOnPreferenceChangeListener(retentionListener);
+        requirePreference(PreferenceConsts.KEY_RETENTION_ARCHIVE_AGE).setOnPreferenceChangeListener(retentionListener);
+
         // Backup
         addPreferencesFromResource(R.xml.settings_backup);
         requirePreference(PreferenceConsts.KEY_IMPORT_BACKUP).setOnPreferenceClickListener(preference -> {
@@ -9,7 +9,10 @@ public final class BroadcastConsts {
     public static final String ACTION_DELETE_SMS = NEKOSMS_PACKAGE + ".action.DELETE_BLOCKED_SMS";
     public static final String ACTION_RESTORE_SMS = NEKOSMS_PACKAGE + ".action.RESTORE_BLOCKED_SMS";
     public static final String ACTION_DISMISS_NOTIFICATION = NEKOSMS_PACKAGE + ".action.DISMISS_NOTIFICATION";
+    public static final String ACTION_PRUNE_MESSAGES = NEKOSMS_PACKAGE + ".action.PRUNE_BLOCKED_SMS";
+    public static final String ACTION_PATTERN_DISABLED = NEKOSMS_PACKAGE + ".action.FILTER_PATTERN_DISABLED";
     public static final String EXTRA_MESSAGE = "message";
+    public static final String EXTRA_PATTERN = "pattern";
 
     private BroadcastConsts() { }
 }
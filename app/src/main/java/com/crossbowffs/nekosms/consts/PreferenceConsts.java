@@ -27,6 +27,15 @@ public final class PreferenceConsts {
     public static final String KEY_NOTIFICATIONS_PRIORITY_DEFAULT = "0";
     public static final String KEY_NOTIFICATIONS_OPEN_SETTINGS = "pref_notifications_open_settings";
 
+    public static final String KEY_RETENTION_MAX_AGE = "pref_retention_max_age";
+    public static final String KEY_RETENTION_MAX_AGE_DEFAULT = "0";
+    public static final String KEY_RETENTION_MAX_COUNT = "pref_retention_max_count";
+    public static final String KEY_RETENTION_MAX_COUNT_DEFAULT = "0";
+    public static final String KEY_RETENTION_MAX_SIZE = "pref_retention_max_size";
+    public static final String KEY_RETENTION_MAX_SIZE_DEFAULT = "0";
+    public static final String KEY_RETENTION_ARCHIVE_AGE = "pref_retention_archive_age";
+    public static final String KEY_RETENTION_ARCHIVE_AGE_DEFAULT = "0";
+
     public static final String KEY_IMPORT_BACKUP = "pref_import_backup";
     public static final String KEY_EXPORT_BACKUP = "pref_export_backup";
 
@@ -0,0 +1,97 @@
+package com.crossbowffs.nekosms.filters;
+
+import java.util.ArrayDeque;
+
+// Matches every literal pattern in the index in a single pass over
+// the input, so the cost of a search depends on the length of the
+// input rather than the number of patterns.
+/* package */ final class AhoCorasickIndex {
+    public static class Builder {
+        private final CharTrie.Builder mTrie;
+
+        public Builder(boolean foldCase) {
+            mTrie = new CharTrie.Builder(foldCase, 1);
+        }
+
+        public boolean isEmpty() {
+            return mTrie.isEmpty();
+        }
+
+        public Builder add(String pattern, int patternId) {
+            mTrie.add(pattern, false, patternId);
+            return this;
+        }
+
+        public AhoCorasickIndex build() {
+            return new AhoCorasickIndex(mTrie.build());
+        }
+    }
+
+    private final CharTrie mTrie;
+    private final int[] mFailure;
+    private final int[] mDictionary;
+
+    private AhoCorasickIndex(CharTrie trie) {
+        mTrie = trie;
+
+        // Compute failure links (longest proper suffix that is also
+        // a prefix of some pattern) and dictionary links (nearest node
+        // along the failure chain that has outputs) in BFS order
+        int nodeCount = trie.getNodeCount();
+        mFailure = new int[nodeCount];
+        mDictionary = new int[nodeCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = trie.getEdgeStart(0); e < trie.getEdgeEnd(0); ++e) {
+            int child = trie.getEdgeTarget(e);
+            mFailure[child] = 0;
+            mDictionary[child] = -1;
+            queue.add(child);
+        }
+        mDictionary[0] = -1;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int e = trie.getEdgeStart(node); e < trie.getEdgeEnd(node); ++e) {
+                char c = trie.getEdgeKey(e);
+                int child = trie.getEdgeTarget(e);
+                int fail = mFailure[node];
+                int next;
+                while ((next = trie.step(fail, c)) < 0 && fail != 0) {
+                    fail = mFailure[fail];
+                }
+                fail = next < 0 ? 0 : next;
+                mFailure[child] = fail;
+                mDictionary[child] = trie.hasOutputs(fail) ? fail : mDictionary[fail];
+                queue.add(child);
+            }
+        }
+    }
+
+    private void reportOutputs(int node, MatchState state) {
+        CharTrie trie = mTrie;
+        for (int i = trie.getOutputStart(node); i < trie.getOutputEnd(node); ++i) {
+            state.addPatternMatch(trie.getOutput(i));
+        }
+    }
+
+    public void search(FieldText text, MatchState state) {
+        CharTrie trie = mTrie;
+        char[] chars = text.getChars(trie.isFoldCase());
+        int length = text.length();
+        int node = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = chars[i];
+            int next;
+            while ((next = trie.step(node, c)) < 0 && node != 0) {
+                node = mFailure[node];
+            }
+            node = next < 0 ? 0 : next;
+
+            if (trie.hasOutputs(node)) {
+                reportOutputs(node, state);
+            }
+            for (int d = mDictionary[node]; d > 0; d = mDictionary[d]) {
+                reportOutputs(d, state);
+            }
+        }
+    }
+}
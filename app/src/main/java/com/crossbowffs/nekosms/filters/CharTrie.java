@@ -0,0 +1,207 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// A trie of literal patterns, flattened into CSR-style arrays which
+// are much more compact than one object per node. Each node holds a
+// list of outputs, which are fixed-size groups of ints whose meaning
+// is up to the index using the trie (usually starting with the
+// pattern ID). Node 0 is the root.
+/* package */ final class CharTrie {
+    public static class Builder {
+        private final boolean mFoldCase;
+        private final int mOutputSize;
+        private final ArrayList<char[]> mEdgeKeys = new ArrayList<>();
+        private final ArrayList<int[]> mEdgeTargets = new ArrayList<>();
+        private final ArrayList<Integer> mEdgeCounts = new ArrayList<>();
+        private final ArrayList<int[]> mOutputs = new ArrayList<>();
+        private int mPatternCount;
+
+        public Builder(boolean foldCase, int outputSize) {
+            mFoldCase = foldCase;
+            mOutputSize = outputSize;
+            newNode();
+        }
+
+        public boolean isEmpty() {
+            return mPatternCount == 0;
+        }
+
+        // Adds the pattern (or its reverse, for matching from the
+        // end of the input) to the trie with the given output
+        public Builder add(String pattern, boolean reverse, int... output) {
+            if (output.length != mOutputSize) {
+                throw new IllegalArgumentException("Expected " + mOutputSize + " output values");
+            }
+
+            int node = 0;
+            int length = pattern.length();
+            for (int i = 0; i < length; ++i) {
+                char c = pattern.charAt(reverse ? length - 1 - i : i);
+                if (mFoldCase) {
+                    c = StringUtils.foldCase(c);
+                }
+                int next = findEdge(node, c);
+                if (next < 0) {
+                    next = newNode();
+                    addEdge(node, c, next);
+                }
+                node = next;
+            }
+
+            int[] outputs = mOutputs.get(node);
+            int offset = outputs == null ? 0 : outputs.length;
+            outputs = outputs == null ? new int[mOutputSize] : Arrays.copyOf(outputs, offset + mOutputSize);
+            System.arraycopy(output, 0, outputs, offset, mOutputSize);
+            mOutputs.set(node, outputs);
+            mPatternCount++;
+            return this;
+        }
+
+        public CharTrie build() {
+            return new CharTrie(this);
+        }
+
+        private int newNode() {
+            mEdgeKeys.add(new char[0]);
+            mEdgeTargets.add(new int[0]);
+            mEdgeCounts.add(0);
+            mOutputs.add(null);
+            return mOutputs.size() - 1;
+        }
+
+        private int findEdge(int node, char c) {
+            char[] keys = mEdgeKeys.get(node);
+            int index = Arrays.binarySearch(keys, 0, mEdgeCounts.get(node), c);
+            return index < 0 ? -1 : mEdgeTargets.get(node)[index];
+        }
+
+        private void addEdge(int node, char c, int target) {
+            char[] keys = mEdgeKeys.get(node);
+            int[] targets = mEdgeTargets.get(node);
+            int count = mEdgeCounts.get(node);
+            if (count == keys.length) {
+                int newLength = Math.max(2, count * 2);
+                keys = Arrays.copyOf(keys, newLength);
+                targets = Arrays.copyOf(targets, newLength);
+                mEdgeKeys.set(node, keys);
+                mEdgeTargets.set(node, targets);
+            }
+
+            // Keep edges sorted so we can binary search them
+            int index = -Arrays.binarySearch(keys, 0, count, c) - 1;
+            System.arraycopy(keys, index, keys, index + 1, count - index);
+            System.arraycopy(targets, index, targets, index + 1, count - index);
+            keys[index] = c;
+            targets[index] = target;
+            mEdgeCounts.set(node, count + 1);
+        }
+    }
+
+    private static final int ROOT_TABLE_SIZE = 128;
+
+    private final boolean mFoldCase;
+    private final int[] mRootTable;
+    private final int[] mEdgeStart;
+    private final char[] mEdgeKeys;
+    private final int[] mEdgeTargets;
+    private final int[] mOutputStart;
+    private final int[] mOutputs;
+
+    private CharTrie(Builder builder) {
+        mFoldCase = builder.mFoldCase;
+
+        int nodeCount = builder.mOutputs.size();
+        mEdgeStart = new int[nodeCount + 1];
+        mOutputStart = new int[nodeCount + 1];
+        int edgeCount = 0;
+        int outputCount = 0;
+        for (int i = 0; i < nodeCount; ++i) {
+            mEdgeStart[i] = edgeCount;
+            mOutputStart[i] = outputCount;
+            edgeCount += builder.mEdgeCounts.get(i);
+            int[] outputs = builder.mOutputs.get(i);
+            if (outputs != null) {
+                outputCount += outputs.length;
+            }
+        }
+        mEdgeStart[nodeCount] = edgeCount;
+        mOutputStart[nodeCount] = outputCount;
+
+        mEdgeKeys = new char[edgeCount];
+        mEdgeTargets = new int[edgeCount];
+        mOutputs = new int[outputCount];
+        for (int i = 0; i < nodeCount; ++i) {
+            int count = builder.mEdgeCounts.get(i);
+            System.arraycopy(builder.mEdgeKeys.get(i), 0, mEdgeKeys, mEdgeStart[i], count);
+            System.arraycopy(builder.mEdgeTargets.get(i), 0, mEdgeTargets, mEdgeStart[i], count);
+            int[] outputs = builder.mOutputs.get(i);
+            if (outputs != null) {
+                System.arraycopy(outputs, 0, mOutputs, mOutputStart[i], outputs.length);
+            }
+        }
+
+        // Most messages are ASCII, so use a direct lookup table
+        // for transitions out of the root node
+        mRootTable = new int[ROOT_TABLE_SIZE];
+        Arrays.fill(mRootTable, -1);
+        for (int e = mEdgeStart[0]; e < mEdgeStart[1]; ++e) {
+            if (mEdgeKeys[e] < ROOT_TABLE_SIZE) {
+                mRootTable[mEdgeKeys[e]] = mEdgeTargets[e];
+            }
+        }
+    }
+
+    public boolean isFoldCase() {
+        return mFoldCase;
+    }
+
+    public int getNodeCount() {
+        return mEdgeStart.length - 1;
+    }
+
+    // Returns the child of the node for the given (already folded,
+    // if this is a case-insensitive trie) character, or -1 if none
+    public int step(int node, char c) {
+        if (node == 0 && c < ROOT_TABLE_SIZE) {
+            return mRootTable[c];
+        }
+        int index = Arrays.binarySearch(mEdgeKeys, mEdgeStart[node], mEdgeStart[node + 1], c);
+        return index < 0 ? -1 : mEdgeTargets[index];
+    }
+
+    public int getEdgeStart(int node) {
+        return mEdgeStart[node];
+    }
+
+    public int getEdgeEnd(int node) {
+        return mEdgeStart[node + 1];
+    }
+
+    public char getEdgeKey(int edge) {
+        return mEdgeKeys[edge];
+    }
+
+    public int getEdgeTarget(int edge) {
+        return mEdgeTargets[edge];
+    }
+
+    public boolean hasOutputs(int node) {
+        return mOutputStart[node] != mOutputStart[node + 1];
+    }
+
+    public int getOutputStart(int node) {
+        return mOutputStart[node];
+    }
+
+    public int getOutputEnd(int node) {
+        return mOutputStart[node + 1];
+    }
+
+    public int getOutput(int index) {
+        return mOutputs[index];
+    }
+}
@@ -0,0 +1,563 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterAction;
+import com.crossbowffs.nekosms.data.SmsFilterField;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// All filter rules compiled into per-field indexes, so that each kind
+// of pattern is matched for every rule at once: exact patterns using
+// a hash table, prefix and suffix patterns using a trie walked from
+// either end of the input, contains patterns using an Aho-Corasick
+// automaton, and regex/wildcard patterns using a lazily built DFA.
+// Only patterns the DFA cannot handle are checked rule by rule, and
+// only if the message contains one of the literals they require.
+/* package */ class CompiledFilterSet {
+    private static final int FIELD_COUNT = SmsFilterField.values().length;
+
+    // Literal indexes have one instance for case sensitive patterns
+    // and one for case insensitive patterns
+    private static final int CASE_SENSITIVE = 0;
+    private static final int CASE_INSENSITIVE = 1;
+
+    // Which index of its field a pattern is in; for the literal
+    // indexes, CASE_SENSITIVE or CASE_INSENSITIVE is added to this
+    private static final int KIND_NONE = -1;
+    private static final int KIND_CONTAINS = 0;
+    private static final int KIND_PREFIX = 2;
+    private static final int KIND_SUFFIX = 4;
+    private static final int KIND_EQUALS = 6;
+    private static final int KIND_REGEX = 7;
+    private static final int KIND_PREFILTER = 8;
+    private static final int KIND_COUNT = 9;
+
+    // How a pattern was added to the index: fully matched by it, only
+    // prefiltered by it (must still be matched individually if the
+    // prefilter passes), or not at all
+    private static final int INDEXED = 0;
+    private static final int PREFILTERED = 1;
+    private static final int NOT_INDEXED = 2;
+
+    // A pattern and where it goes in the indexes. Parsing regexes is
+    // most of the work of building the indexes, so these are carried
+    // over to the next filter set for the patterns that are still in
+    // it (the patterns of unchanged rules are reused as-is). A pattern
+    // keeps its ID for as long as it exists, so that the indexes that
+    // none of the changed patterns are in can be reused too.
+    private static class IndexedPattern {
+        private final SmsFilterPattern mPattern;
+        private final int mId;
+        private final int mResult;
+        private final int mKind;
+        private final RegexNode mRegexNode;
+        private final String[] mLiterals;
+
+        private IndexedPattern(SmsFilterPattern pattern, int id, int result, int kind, RegexNode regexNode, String[] literals) {
+            mPattern = pattern;
+            mId = id;
+            mResult = result;
+            mKind = kind;
+            mRegexNode = regexNode;
+            mLiterals = literals;
+        }
+
+        public static IndexedPattern create(SmsFilterPattern pattern, int id) {
+            if (pattern instanceof StringFilterPattern) {
+                int caseIndex = pattern.isCaseSensitive() ? CASE_SENSITIVE : CASE_INSENSITIVE;
+                switch (pattern.getMode()) {
+                case CONTAINS:
+                    return new IndexedPattern(pattern, id, INDEXED, KIND_CONTAINS + caseIndex, null, null);
+                case PREFIX:
+                    return new IndexedPattern(pattern, id, INDEXED, KIND_PREFIX + caseIndex, null, null);
+                case SUFFIX:
+                    return new IndexedPattern(pattern, id, INDEXED, KIND_SUFFIX + caseIndex, null, null);
+                case EQUALS:
+                    return new IndexedPattern(pattern, id, INDEXED, KIND_EQUALS, null, null);
+                default:
+                    throw new AssertionError("Invalid mode: " + pattern.getMode());
+                }
+            }
+
+            RegexNode node = null;
+            try {
+                if (pattern instanceof WildcardFilterPattern) {
+                    node = ((WildcardFilterPattern)pattern).toRegexNode();
+                } else {
+                    node = RegexParser.parse(((RegexFilterPattern)pattern).getRegex(), !pattern.isCaseSensitive());
+                }
+
+                // The program may still reject the pattern (e.g. if
+                // it's too large), which we need to know up front
+                new RegexProgram.Builder().add(node, id);
+                return new IndexedPattern(pattern, id, INDEXED, KIND_REGEX, node, null);
+            } catch (UnsupportedRegexException e) {
+                Xlog.v("Pattern %s will be matched individually: %s", pattern.getPattern(), e.getMessage());
+            }
+
+            // The pattern will be matched individually, but we can
+            // skip it for messages without any of its required literals
+            if (node == null) {
+                try {
+                    node = RegexParser.parseForLiterals(((RegexFilterPattern)pattern).getRegex(), !pattern.isCaseSensitive());
+                } catch (UnsupportedRegexException e) {
+                    return new IndexedPattern(pattern, -1, NOT_INDEXED, KIND_NONE, null, null);
+                }
+            }
+            String[] literals = RegexLiterals.extract(node);
+            if (literals == null) {
+                return new IndexedPattern(pattern, -1, NOT_INDEXED, KIND_NONE, null, null);
+            }
+            return new IndexedPattern(pattern, id, PREFILTERED, KIND_PREFILTER, null, literals);
+        }
+    }
+
+    // The regex DFA is built lazily while searching; each thread gets
+    // its own copy of it so that messages can be matched concurrently
+    // without locking. If the index is reused by the next filter set,
+    // so are the DFAs built so far.
+    private static class RegexIndex {
+        private final RegexProgram mProgram;
+        private final ThreadLocal<RegexSetIndex> mSetIndexes = new ThreadLocal<RegexSetIndex>() {
+            @Override
+            protected RegexSetIndex initialValue() {
+                return new RegexSetIndex(mProgram);
+            }
+        };
+
+        public RegexIndex(RegexProgram program) {
+            mProgram = program;
+        }
+
+        public void search(String text, MatchState state) {
+            mSetIndexes.get().search(text, state);
+        }
+    }
+
+    // Immutable once built (apart from the regex DFAs), so the indexes
+    // can be shared with the next filter set
+    private static class FieldIndex {
+        private final AhoCorasickIndex[] mContainsIndexes = new AhoCorasickIndex[2];
+        private final PrefixIndex[] mPrefixIndexes = new PrefixIndex[2];
+        private final SuffixIndex[] mSuffixIndexes = new SuffixIndex[2];
+        private EqualsIndex mEqualsIndex;
+        private RegexIndex mRegexIndex;
+        private AhoCorasickIndex mPrefilterIndex;
+
+        // Builds the indexes of the kinds marked in rebuild from the
+        // patterns of this field, and reuses the others from previous
+        public FieldIndex(FieldIndex previous, List<IndexedPattern> patterns, boolean[] rebuild) {
+            if (previous != null) {
+                System.arraycopy(previous.mContainsIndexes, 0, mContainsIndexes, 0, 2);
+                System.arraycopy(previous.mPrefixIndexes, 0, mPrefixIndexes, 0, 2);
+                System.arraycopy(previous.mSuffixIndexes, 0, mSuffixIndexes, 0, 2);
+                mEqualsIndex = previous.mEqualsIndex;
+                mRegexIndex = previous.mRegexIndex;
+                mPrefilterIndex = previous.mPrefilterIndex;
+            }
+            for (int kind = 0; kind < KIND_COUNT; ++kind) {
+                if (rebuild[kind]) {
+                    build(kind, patterns);
+                }
+            }
+        }
+
+        private void build(int kind, List<IndexedPattern> patterns) {
+            switch (kind) {
+            case KIND_CONTAINS + CASE_SENSITIVE:
+            case KIND_CONTAINS + CASE_INSENSITIVE: {
+                int caseIndex = kind - KIND_CONTAINS;
+                AhoCorasickIndex.Builder builder = new AhoCorasickIndex.Builder(caseIndex == CASE_INSENSITIVE);
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        builder.add(((StringFilterPattern)pattern.mPattern).getNormalizedPattern(), pattern.mId);
+                    }
+                }
+                mContainsIndexes[caseIndex] = builder.isEmpty() ? null : builder.build();
+                break;
+            }
+            case KIND_PREFIX + CASE_SENSITIVE:
+            case KIND_PREFIX + CASE_INSENSITIVE: {
+                int caseIndex = kind - KIND_PREFIX;
+                PrefixIndex.Builder builder = new PrefixIndex.Builder(caseIndex == CASE_INSENSITIVE);
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        builder.add(((StringFilterPattern)pattern.mPattern).getNormalizedPattern(), pattern.mId);
+                    }
+                }
+                mPrefixIndexes[caseIndex] = builder.isEmpty() ? null : builder.build();
+                break;
+            }
+            case KIND_SUFFIX + CASE_SENSITIVE:
+            case KIND_SUFFIX + CASE_INSENSITIVE: {
+                int caseIndex = kind - KIND_SUFFIX;
+                SuffixIndex.Builder builder = new SuffixIndex.Builder(caseIndex == CASE_INSENSITIVE);
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        builder.add(((StringFilterPattern)pattern.mPattern).getNormalizedPattern(), pattern.mId);
+                    }
+                }
+                mSuffixIndexes[caseIndex] = builder.isEmpty() ? null : builder.build();
+                break;
+            }
+            case KIND_EQUALS: {
+                EqualsIndex.Builder builder = new EqualsIndex.Builder();
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        StringFilterPattern stringPattern = (StringFilterPattern)pattern.mPattern;
+                        builder.add(stringPattern.getNormalizedPattern(), pattern.mId, stringPattern.isCaseSensitive());
+                    }
+                }
+                mEqualsIndex = builder.isEmpty() ? null : builder.build();
+                break;
+            }
+            case KIND_REGEX: {
+                RegexProgram.Builder builder = new RegexProgram.Builder();
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        builder.add(pattern.mRegexNode, pattern.mId);
+                    }
+                }
+                mRegexIndex = builder.isEmpty() ? null : new RegexIndex(builder.build());
+                break;
+            }
+            case KIND_PREFILTER: {
+                AhoCorasickIndex.Builder builder = new AhoCorasickIndex.Builder(true);
+                for (IndexedPattern pattern : patterns) {
+                    if (pattern.mKind == kind) {
+                        for (String literal : pattern.mLiterals) {
+                            builder.add(literal, pattern.mId);
+                        }
+                    }
+                }
+                mPrefilterIndex = builder.isEmpty() ? null : builder.build();
+                break;
+            }
+            default:
+                throw new AssertionError("Invalid index kind: " + kind);
+            }
+        }
+
+        public void search(FieldText text, MatchState state) {
+            if (mEqualsIndex != null) {
+                mEqualsIndex.search(text, state);
+            }
+            for (PrefixIndex index : mPrefixIndexes) {
+                if (index != null) {
+                    index.search(text, state);
+                }
+            }
+            for (SuffixIndex index : mSuffixIndexes) {
+                if (index != null) {
+                    index.search(text, state);
+                }
+            }
+            for (AhoCorasickIndex index : mContainsIndexes) {
+                if (index != null) {
+                    index.search(text, state);
+                }
+            }
+            if (mRegexIndex != null) {
+                mRegexIndex.search(text.getText(), state);
+            }
+            if (mPrefilterIndex != null) {
+                mPrefilterIndex.search(text, state);
+            }
+        }
+    }
+
+    // The order in which filters are checked once the indexes have
+    // been searched. Replaced as a whole by reorder(), so match() can
+    // read it without locking.
+    private static class EvaluationOrder {
+        private final int[] mFilters;
+        private final int[] mRanks;
+        private final int[] mUnindexedRanks;
+
+        public EvaluationOrder(int[] filters, int[] unindexedFilters) {
+            mFilters = filters;
+            mRanks = new int[filters.length];
+            for (int i = 0; i < filters.length; ++i) {
+                mRanks[filters[i]] = i;
+            }
+            mUnindexedRanks = new int[unindexedFilters.length];
+            for (int i = 0; i < unindexedFilters.length; ++i) {
+                mUnindexedRanks[i] = mRanks[unindexedFilters[i]];
+            }
+            Arrays.sort(mUnindexedRanks);
+        }
+    }
+
+    private final SmsFilter[] mFilters;
+    private final IdentityHashMap<SmsFilterPattern, IndexedPattern> mPatterns;
+    private final SmsFilterPattern[][] mUnindexedPatterns;
+    private final int[] mUnindexedFilters;
+    private final FieldIndex[] mFieldIndexes;
+    private final int[] mPatternFilters;
+    private final int[] mRequiredMatches;
+    private final AtomicIntegerArray mHitCounts;
+    private volatile EvaluationOrder mOrder;
+
+    // Multiple threads may be matching messages at once (e.g. one
+    // per SIM), so each one gets its own scratch state
+    private final ThreadLocal<MatchState> mMatchStates = new ThreadLocal<MatchState>() {
+        @Override
+        protected MatchState initialValue() {
+            return new MatchState(mPatternFilters, mRequiredMatches);
+        }
+    };
+
+    // Filters must be ordered by priority (i.e. whitelist first),
+    // since the first matching filter determines the verdict. If
+    // previous is not null, only the patterns that are not in it
+    // are parsed, and only the indexes whose patterns changed are
+    // rebuilt; previous can still be used while this is built.
+    public CompiledFilterSet(List<SmsFilter> filters, CompiledFilterSet previous) {
+        int filterCount = filters.size();
+        mFilters = filters.toArray(new SmsFilter[filterCount]);
+        mUnindexedPatterns = new SmsFilterPattern[filterCount][];
+
+        // Find the patterns that are still here first, so the new
+        // patterns can be given the IDs that are no longer in use
+        mPatterns = new IdentityHashMap<>();
+        BitSet usedIds = new BitSet();
+        if (previous != null) {
+            for (SmsFilter filter : mFilters) {
+                for (SmsFilterPattern pattern : filter.getPatterns()) {
+                    IndexedPattern indexed = previous.mPatterns.get(pattern);
+                    if (indexed != null) {
+                        mPatterns.put(pattern, indexed);
+                        if (indexed.mId >= 0) {
+                            usedIds.set(indexed.mId);
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean[][] rebuild = new boolean[FIELD_COUNT][KIND_COUNT];
+        if (previous == null) {
+            for (boolean[] fieldRebuild : rebuild) {
+                Arrays.fill(fieldRebuild, true);
+            }
+        } else {
+            for (IndexedPattern indexed : previous.mPatterns.values()) {
+                if (!mPatterns.containsKey(indexed.mPattern) && indexed.mKind != KIND_NONE) {
+                    rebuild[indexed.mPattern.getField().ordinal()][indexed.mKind] = true;
+                }
+            }
+        }
+
+        int nextId = 0;
+        for (SmsFilter filter : mFilters) {
+            for (SmsFilterPattern pattern : filter.getPatterns()) {
+                if (mPatterns.containsKey(pattern)) {
+                    continue;
+                }
+                nextId = usedIds.nextClearBit(nextId);
+                IndexedPattern indexed = IndexedPattern.create(pattern, nextId);
+                mPatterns.put(pattern, indexed);
+                if (indexed.mKind != KIND_NONE) {
+                    usedIds.set(nextId);
+                    rebuild[pattern.getField().ordinal()][indexed.mKind] = true;
+                }
+            }
+        }
+
+        List<List<IndexedPattern>> fieldPatterns = new ArrayList<>(FIELD_COUNT);
+        for (int i = 0; i < FIELD_COUNT; ++i) {
+            fieldPatterns.add(new ArrayList<IndexedPattern>());
+        }
+
+        int[] requiredMatches = new int[filterCount];
+        int[] patternFilters = new int[usedIds.length()];
+        int literalCount = 0;
+        int regexCount = 0;
+        int prefilterCount = 0;
+        ArrayList<Integer> unindexedFilters = new ArrayList<>();
+        ArrayList<SmsFilterPattern> unindexed = new ArrayList<>(FIELD_COUNT);
+        for (int i = 0; i < filterCount; ++i) {
+            SmsFilter filter = mFilters[i];
+            unindexed.clear();
+            for (SmsFilterPattern pattern : filter.getPatterns()) {
+                IndexedPattern indexed = mPatterns.get(pattern);
+                if (indexed.mResult != NOT_INDEXED) {
+                    fieldPatterns.get(pattern.getField().ordinal()).add(indexed);
+                    patternFilters[indexed.mId] = i;
+                    requiredMatches[i]++;
+                }
+                if (indexed.mResult != INDEXED) {
+                    unindexed.add(pattern);
+                }
+                if (indexed.mKind == KIND_REGEX) {
+                    regexCount++;
+                } else if (indexed.mKind == KIND_PREFILTER) {
+                    prefilterCount++;
+                } else if (indexed.mKind != KIND_NONE) {
+                    literalCount++;
+                }
+            }
+
+            mUnindexedPatterns[i] = unindexed.toArray(new SmsFilterPattern[unindexed.size()]);
+            if (requiredMatches[i] == 0) {
+                if (unindexed.isEmpty()) {
+                    Xlog.w("No sender or body pattern, ignoring");
+                } else {
+                    unindexedFilters.add(i);
+                }
+            }
+        }
+
+        mUnindexedFilters = new int[unindexedFilters.size()];
+        for (int i = 0; i < mUnindexedFilters.length; ++i) {
+            mUnindexedFilters[i] = unindexedFilters.get(i);
+        }
+
+        int rebuiltCount = 0;
+        mFieldIndexes = new FieldIndex[FIELD_COUNT];
+        for (int i = 0; i < FIELD_COUNT; ++i) {
+            FieldIndex previousIndex = previous == null ? null : previous.mFieldIndexes[i];
+            mFieldIndexes[i] = new FieldIndex(previousIndex, fieldPatterns.get(i), rebuild[i]);
+            for (boolean kindRebuilt : rebuild[i]) {
+                if (kindRebuilt) {
+                    rebuiltCount++;
+                }
+            }
+        }
+
+        mPatternFilters = patternFilters;
+        mRequiredMatches = requiredMatches;
+        mHitCounts = new AtomicIntegerArray(filterCount);
+        int[] order = new int[filterCount];
+        for (int i = 0; i < filterCount; ++i) {
+            order[i] = i;
+        }
+        mOrder = new EvaluationOrder(order, mUnindexedFilters);
+        Xlog.i("Indexed %d literal and %d regex patterns, prefiltered %d patterns, %d filters need individual matching",
+            literalCount, regexCount, prefilterCount, mUnindexedFilters.length);
+        Xlog.i("Rebuilt %d of %d pattern indexes", rebuiltCount, FIELD_COUNT * KIND_COUNT);
+    }
+
+    public int size() {
+        return mFilters.length;
+    }
+
+    // Reorders the filters so that the ones that match most often
+    // (and among those, the ones that are cheapest to check) come
+    // first. Since the first matching filter only determines the
+    // verdict through its action, filters are only moved within the
+    // whitelist and blacklist; the whitelist still always wins.
+    // This may be called on a background thread while messages are
+    // being matched, the new order is swapped in atomically.
+    public void reorder() {
+        int filterCount = mFilters.length;
+        int[] hits = new int[filterCount];
+        for (int i = 0; i < filterCount; ++i) {
+            // Halve the counts on every pass so that rules which
+            // stopped matching eventually move back down
+            hits[i] = mHitCounts.get(i);
+            mHitCounts.addAndGet(i, -(hits[i] - hits[i] / 2));
+        }
+        sortByHits(hits);
+    }
+
+    private void sortByHits(final int[] hits) {
+        int filterCount = mFilters.length;
+        final int[] costs = new int[filterCount];
+        Integer[] order = new Integer[filterCount];
+        for (int i = 0; i < filterCount; ++i) {
+            costs[i] = mUnindexedPatterns[i].length;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                boolean aBlock = mFilters[a].getAction() == SmsFilterAction.BLOCK;
+                boolean bBlock = mFilters[b].getAction() == SmsFilterAction.BLOCK;
+                if (aBlock != bBlock) {
+                    return aBlock ? 1 : -1;
+                } else if (hits[a] != hits[b]) {
+                    return hits[a] > hits[b] ? -1 : 1;
+                } else if (costs[a] != costs[b]) {
+                    return costs[a] < costs[b] ? -1 : 1;
+                } else {
+                    return a - b;
+                }
+            }
+        });
+
+        int[] filters = new int[filterCount];
+        for (int i = 0; i < filterCount; ++i) {
+            filters[i] = order[i];
+        }
+        mOrder = new EvaluationOrder(filters, mUnindexedFilters);
+    }
+
+    // Carries over the hit counts of filters that are also in the
+    // previous set (when only some rules changed, the others are
+    // reused as-is), so the evaluation order is not lost
+    public void copyHitCounts(CompiledFilterSet previous) {
+        IdentityHashMap<SmsFilter, Integer> previousIndexes = new IdentityHashMap<>(previous.mFilters.length);
+        for (int i = 0; i < previous.mFilters.length; ++i) {
+            previousIndexes.put(previous.mFilters[i], i);
+        }
+        int[] hits = new int[mFilters.length];
+        for (int i = 0; i < mFilters.length; ++i) {
+            Integer index = previousIndexes.get(mFilters[i]);
+            if (index != null) {
+                hits[i] = previous.mHitCounts.get(index);
+                mHitCounts.set(i, hits[i]);
+            }
+        }
+        sortByHits(hits);
+    }
+
+    private boolean matchUnindexed(int filter, String sender, String body) {
+        for (SmsFilterPattern pattern : mUnindexedPatterns[filter]) {
+            if (!pattern.match(sender, body)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the highest priority filter that matches the message,
+    // or null if the message does not match any filter.
+    public SmsFilter match(String sender, String body) {
+        MatchState state = mMatchStates.get();
+        state.reset(sender, body);
+        mFieldIndexes[SmsFilterField.SENDER.ordinal()].search(state.getSenderText(), state);
+        mFieldIndexes[SmsFilterField.BODY.ordinal()].search(state.getBodyText(), state);
+        EvaluationOrder order = mOrder;
+
+        // Walk the candidates (whose indexed patterns all matched)
+        // and the filters without any indexed patterns in evaluation
+        // order, stopping at the first one that fully matches.
+        int candidateCount = state.getCandidateCount();
+        int[] candidates = state.getSortedCandidateRanks(order.mRanks);
+        int[] unindexed = order.mUnindexedRanks;
+        int c = 0;
+        int u = 0;
+        while (c < candidateCount || u < unindexed.length) {
+            int rank;
+            if (u == unindexed.length || (c < candidateCount && candidates[c] < unindexed[u])) {
+                rank = candidates[c++];
+            } else {
+                rank = unindexed[u++];
+            }
+            int filter = order.mFilters[rank];
+            if (matchUnindexed(filter, sender, body)) {
+                mHitCounts.incrementAndGet(filter);
+                return mFilters[filter];
+            }
+        }
+        return null;
+    }
+}
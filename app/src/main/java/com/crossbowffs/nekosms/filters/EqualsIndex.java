@@ -0,0 +1,70 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Matches exact patterns with a hash lookup of the whole input.
+// Case insensitive patterns are keyed by their folded form, so the
+// input only needs to be folded once to look them all up.
+/* package */ final class EqualsIndex {
+    public static class Builder {
+        private final HashMap<String, int[]> mCaseSensitive = new HashMap<>();
+        private final HashMap<String, int[]> mCaseInsensitive = new HashMap<>();
+
+        public boolean isEmpty() {
+            return mCaseSensitive.isEmpty() && mCaseInsensitive.isEmpty();
+        }
+
+        public Builder add(String pattern, int patternId, boolean caseSensitive) {
+            if (caseSensitive) {
+                put(mCaseSensitive, pattern, patternId);
+            } else {
+                put(mCaseInsensitive, StringUtils.foldCase(pattern), patternId);
+            }
+            return this;
+        }
+
+        private static void put(HashMap<String, int[]> map, String key, int patternId) {
+            // Several rules may share the same pattern
+            int[] patternIds = map.get(key);
+            if (patternIds == null) {
+                patternIds = new int[] {patternId};
+            } else {
+                patternIds = Arrays.copyOf(patternIds, patternIds.length + 1);
+                patternIds[patternIds.length - 1] = patternId;
+            }
+            map.put(key, patternIds);
+        }
+
+        public EqualsIndex build() {
+            return new EqualsIndex(this);
+        }
+    }
+
+    private final HashMap<String, int[]> mCaseSensitive;
+    private final HashMap<String, int[]> mCaseInsensitive;
+
+    private EqualsIndex(Builder builder) {
+        mCaseSensitive = builder.mCaseSensitive;
+        mCaseInsensitive = builder.mCaseInsensitive;
+    }
+
+    private static void reportMatches(int[] patternIds, MatchState state) {
+        if (patternIds != null) {
+            for (int patternId : patternIds) {
+                state.addPatternMatch(patternId);
+            }
+        }
+    }
+
+    public void search(FieldText text, MatchState state) {
+        if (!mCaseSensitive.isEmpty()) {
+            reportMatches(mCaseSensitive.get(text.getText()), state);
+        }
+        if (!mCaseInsensitive.isEmpty()) {
+            reportMatches(mCaseInsensitive.get(text.getFoldedString()), state);
+        }
+    }
+}
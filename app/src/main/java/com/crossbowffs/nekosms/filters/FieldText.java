@@ -0,0 +1,81 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+// One field (sender or body) of the message being matched, along with
+// views of it that the indexes share. The case folded view is computed
+// at most once per message, no matter how many case insensitive
+// indexes search it, and the char buffers are reused across messages
+// so that matching a message does not allocate them every time.
+/* package */ final class FieldText {
+    private String mText;
+    private int mLength;
+    private char[] mChars = new char[64];
+    private char[] mFolded = new char[64];
+    private boolean mHasChars;
+    private boolean mHasFolded;
+    private String mFoldedString;
+
+    public void reset(String text) {
+        mText = text;
+        mLength = text.length();
+        mHasChars = false;
+        mHasFolded = false;
+        mFoldedString = null;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    // Returns the chars of the text (case folded if requested); only
+    // the first length() chars of the returned buffer are valid
+    public char[] getChars(boolean foldCase) {
+        return foldCase ? getFoldedChars() : getChars();
+    }
+
+    public char[] getChars() {
+        if (!mHasChars) {
+            if (mChars.length < mLength) {
+                mChars = new char[Math.max(mLength, mChars.length * 2)];
+            }
+            mText.getChars(0, mLength, mChars, 0);
+            mHasChars = true;
+        }
+        return mChars;
+    }
+
+    public char[] getFoldedChars() {
+        if (!mHasFolded) {
+            if (mFolded.length < mLength) {
+                mFolded = new char[Math.max(mLength, mFolded.length * 2)];
+            }
+            char[] chars = getChars();
+            char[] folded = mFolded;
+            for (int i = 0; i < mLength; ++i) {
+                char c = chars[i];
+                if (c < 128) {
+                    // Fast path, ASCII letters fold to lowercase
+                    // and other ASCII chars are left unchanged
+                    folded[i] = c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+                } else {
+                    folded[i] = StringUtils.foldCase(c);
+                }
+            }
+            mHasFolded = true;
+        }
+        return mFolded;
+    }
+
+    // The folded text as a string, for hash lookups
+    public String getFoldedString() {
+        if (mFoldedString == null) {
+            mFoldedString = new String(getFoldedChars(), 0, mLength);
+        }
+        return mFoldedString;
+    }
+}
@@ -0,0 +1,91 @@
+package com.crossbowffs.nekosms.filters;
+
+import java.util.Arrays;
+
+// Scratch state used while matching a single message. Instead of
+// clearing the per-pattern and per-filter arrays between messages
+// (which would cost O(rules) per message), each entry is stamped
+// with the generation of the message that last touched it.
+/* package */ final class MatchState {
+    private final int[] mPatternFilters;
+    private final int[] mRequiredMatches;
+    private final int[] mPatternGenerations;
+    private final int[] mFilterGenerations;
+    private final int[] mFilterMatches;
+    private final FieldText mSenderText = new FieldText();
+    private final FieldText mBodyText = new FieldText();
+    private int[] mCandidates;
+    private int mCandidateCount;
+    private int mGeneration;
+
+    public MatchState(int[] patternFilters, int[] requiredMatches) {
+        mPatternFilters = patternFilters;
+        mRequiredMatches = requiredMatches;
+        mPatternGenerations = new int[patternFilters.length];
+        mFilterGenerations = new int[requiredMatches.length];
+        mFilterMatches = new int[requiredMatches.length];
+        mCandidates = new int[16];
+    }
+
+    public void reset(String sender, String body) {
+        mSenderText.reset(sender);
+        mBodyText.reset(body);
+        mCandidateCount = 0;
+        if (++mGeneration == 0) {
+            Arrays.fill(mPatternGenerations, 0);
+            Arrays.fill(mFilterGenerations, 0);
+            mGeneration = 1;
+        }
+    }
+
+    public FieldText getSenderText() {
+        return mSenderText;
+    }
+
+    public FieldText getBodyText() {
+        return mBodyText;
+    }
+
+    public void addPatternMatch(int patternId) {
+        // A pattern may be reported more than once (e.g. if it
+        // occurs multiple times in the body), only count it once
+        if (mPatternGenerations[patternId] == mGeneration) {
+            return;
+        }
+        mPatternGenerations[patternId] = mGeneration;
+
+        int filter = mPatternFilters[patternId];
+        int matches;
+        if (mFilterGenerations[filter] != mGeneration) {
+            mFilterGenerations[filter] = mGeneration;
+            matches = 1;
+        } else {
+            matches = mFilterMatches[filter] + 1;
+        }
+        mFilterMatches[filter] = matches;
+
+        // Once all of the filter's indexed patterns have matched,
+        // it becomes a candidate for the final verdict
+        if (matches == mRequiredMatches[filter]) {
+            if (mCandidateCount == mCandidates.length) {
+                mCandidates = Arrays.copyOf(mCandidates, mCandidateCount * 2);
+            }
+            mCandidates[mCandidateCount++] = filter;
+        }
+    }
+
+    public int getCandidateCount() {
+        return mCandidateCount;
+    }
+
+    // Replaces each candidate with its rank in the evaluation order
+    // and sorts them, so they can be walked in that order
+    public int[] getSortedCandidateRanks(int[] ranks) {
+        int[] candidates = mCandidates;
+        for (int i = 0; i < mCandidateCount; ++i) {
+            candidates[i] = ranks[candidates[i]];
+        }
+        Arrays.sort(candidates, 0, mCandidateCount);
+        return candidates;
+    }
+}
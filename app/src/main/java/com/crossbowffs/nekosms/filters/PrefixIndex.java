@@ -0,0 +1,51 @@
+package com.crossbowffs.nekosms.filters;
+
+// Matches prefix patterns by walking down a trie from the start
+// of the input. Every pattern that matches lies on the single
+// path spelled out by the input, so a search costs at most one step
+// per character no matter how many patterns there are (which makes
+// e.g. tens of thousands of phone number prefixes cheap to check).
+/* package */ final class PrefixIndex {
+    public static class Builder {
+        private final CharTrie.Builder mTrie;
+
+        public Builder(boolean foldCase) {
+            mTrie = new CharTrie.Builder(foldCase, 1);
+        }
+
+        public boolean isEmpty() {
+            return mTrie.isEmpty();
+        }
+
+        public Builder add(String pattern, int patternId) {
+            mTrie.add(pattern, false, patternId);
+            return this;
+        }
+
+        public PrefixIndex build() {
+            return new PrefixIndex(mTrie.build());
+        }
+    }
+
+    private final CharTrie mTrie;
+
+    private PrefixIndex(CharTrie trie) {
+        mTrie = trie;
+    }
+
+    public void search(FieldText text, MatchState state) {
+        CharTrie trie = mTrie;
+        char[] chars = text.getChars(trie.isFoldCase());
+        int length = text.length();
+        int node = 0;
+        for (int i = 0; i < length; ++i) {
+            node = trie.step(node, chars[i]);
+            if (node < 0) {
+                return;
+            }
+            for (int j = trie.getOutputStart(node); j < trie.getOutputEnd(node); ++j) {
+                state.addPatternMatch(trie.getOutput(j));
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+// A set of code points, as matched by a character class, a predefined
+// class (\d, \w, \s), a Unicode category (\p{L}), or the dot. The
+// predefined classes follow ICU (which backs java.util.regex on Android)
+// rather than the JDK, so e.g. \d matches any Unicode decimal digit.
+/* package */ final class RegexCharClass {
+    public static final int PREDICATE_NONE = 0;
+    public static final int PREDICATE_DIGIT = 1;
+    public static final int PREDICATE_WORD = 2;
+    public static final int PREDICATE_SPACE = 3;
+    public static final int PREDICATE_LINE_TERMINATOR = 4;
+    public static final int PREDICATE_CATEGORY = 5;
+
+    private final int[] mRanges;
+    private final int mPredicate;
+    private final int mCategoryMask;
+    private final RegexCharClass[] mChildren;
+    private final boolean mFoldCase;
+    private final boolean mNegated;
+
+    private RegexCharClass(int[] ranges, int predicate, int categoryMask,
+                           RegexCharClass[] children, boolean foldCase, boolean negated) {
+        mRanges = ranges;
+        mPredicate = predicate;
+        mCategoryMask = categoryMask;
+        mChildren = children;
+        mFoldCase = foldCase;
+        mNegated = negated;
+    }
+
+    public static RegexCharClass forPredicate(int predicate, boolean negated) {
+        return new RegexCharClass(new int[0], predicate, 0, new RegexCharClass[0], false, negated);
+    }
+
+    public static RegexCharClass forCategories(int categoryMask, boolean foldCase, boolean negated) {
+        return new RegexCharClass(new int[0], PREDICATE_CATEGORY, categoryMask, new RegexCharClass[0], foldCase, negated);
+    }
+
+    // Matches any character except line terminators, or any character
+    // at all in DOTALL mode
+    public static RegexCharClass forDot(boolean dotAll) {
+        return forPredicate(dotAll ? PREDICATE_NONE : PREDICATE_LINE_TERMINATOR, true);
+    }
+
+    public static class Builder {
+        private final ArrayList<int[]> mRanges = new ArrayList<>();
+        private final ArrayList<RegexCharClass> mChildren = new ArrayList<>();
+
+        public Builder addRange(int start, int end) {
+            mRanges.add(new int[] {start, end});
+            return this;
+        }
+
+        public Builder addClass(RegexCharClass charClass) {
+            mChildren.add(charClass);
+            return this;
+        }
+
+        public RegexCharClass build(boolean foldCase, boolean negated) {
+            // Ranges are stored in folded form for case insensitive
+            // classes, so that e.g. [A-Z] also contains the Kelvin sign
+            BitSet codePoints = new BitSet();
+            for (int[] range : mRanges) {
+                for (int c = range[0]; c <= range[1]; ++c) {
+                    codePoints.set(foldCase ? StringUtils.foldCase(c) : c);
+                }
+            }
+
+            ArrayList<Integer> ranges = new ArrayList<>();
+            for (int start = codePoints.nextSetBit(0); start >= 0; ) {
+                int end = codePoints.nextClearBit(start);
+                ranges.add(start);
+                ranges.add(end - 1);
+                start = codePoints.nextSetBit(end);
+            }
+            int[] rangeArray = new int[ranges.size()];
+            for (int i = 0; i < rangeArray.length; ++i) {
+                rangeArray[i] = ranges.get(i);
+            }
+
+            RegexCharClass[] children = mChildren.toArray(new RegexCharClass[mChildren.size()]);
+            return new RegexCharClass(rangeArray, PREDICATE_NONE, 0, children, foldCase, negated);
+        }
+    }
+
+    public static boolean isLineTerminator(int c) {
+        return (c >= '\n' && c <= '\r') || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    public static boolean isWord(int c) {
+        if (c == '\u200c' || c == '\u200d' || Character.isAlphabetic(c)) {
+            return true;
+        }
+        switch (Character.getType(c)) {
+        case Character.NON_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+        case Character.COMBINING_SPACING_MARK:
+        case Character.DECIMAL_DIGIT_NUMBER:
+        case Character.CONNECTOR_PUNCTUATION:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Characters that are skipped over when looking for word
+    // boundaries, so that e.g. a combining accent never splits a word
+    public static boolean isBoundaryTransparent(int c) {
+        switch (Character.getType(c)) {
+        case Character.NON_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+        case Character.FORMAT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isSpace(int c) {
+        return c == '\t' || c == '\n' || c == '\f' || c == '\r' || Character.isSpaceChar(c);
+    }
+
+    private boolean inCategories(int c) {
+        return (mCategoryMask & (1 << Character.getType(c))) != 0;
+    }
+
+    private boolean matchesPredicate(int c) {
+        switch (mPredicate) {
+        case PREDICATE_DIGIT:
+            return Character.getType(c) == Character.DECIMAL_DIGIT_NUMBER;
+        case PREDICATE_WORD:
+            return isWord(c);
+        case PREDICATE_SPACE:
+            return isSpace(c);
+        case PREDICATE_LINE_TERMINATOR:
+            return isLineTerminator(c);
+        case PREDICATE_CATEGORY:
+            if (mFoldCase) {
+                return inCategories(c)
+                    || inCategories(Character.toUpperCase(c))
+                    || inCategories(Character.toLowerCase(c));
+            }
+            return inCategories(c);
+        default:
+            return false;
+        }
+    }
+
+    private boolean inRanges(int c) {
+        int[] ranges = mRanges;
+        int lo = 0;
+        int hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c < ranges[mid * 2]) {
+                hi = mid - 1;
+            } else if (c > ranges[mid * 2 + 1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean matches(int c) {
+        boolean matches = mRanges.length != 0 && inRanges(mFoldCase ? StringUtils.foldCase(c) : c);
+        if (!matches && mPredicate != PREDICATE_NONE) {
+            matches = matchesPredicate(c);
+        }
+        for (int i = 0; !matches && i < mChildren.length; ++i) {
+            matches = mChildren[i].matches(c);
+        }
+        return matches != mNegated;
+    }
+}
@@ -1,17 +1,108 @@
 package com.crossbowffs.nekosms.filters;
 
-import com.crossbowffs.nekosms.data.SmsFilterMode;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.utils.Xlog;
 
 import java.text.Normalizer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+// Only used for patterns that the automaton in RegexSetIndex cannot
+// handle, since java.util.regex may take exponential time to match.
 /* package */ class RegexFilterPattern extends SmsFilterPattern {
-    private final Matcher mMatcher;
+    // Patterns that are prone to runaway backtracking are matched on a
+    // separate thread, so a single bad pattern cannot hold up SMS
+    // delivery. The match reads the input through a DeadlineCharSequence
+    // and gives up after MATCH_TIMEOUT_MS, counted from when it actually
+    // starts running. We stop waiting for it after WAIT_TIMEOUT_MS, which
+    // also leaves time for starting a thread and for a busy CPU. Android's
+    // regex engine copies the input into native code instead of calling
+    // charAt(), so there only the wait timeout applies, and the thread is
+    // left to finish on its own.
+    //
+    // A slow device can make any pattern time out once in a while, so a
+    // pattern is only disabled after timing out several times in a row.
+    // Until it is reloaded, a timed out or disabled pattern is treated as
+    // matching for whitelist rules and as not matching for blacklist
+    // rules, so that the message is delivered either way.
+    private static final long MATCH_TIMEOUT_MS = 200;
+    private static final long WAIT_TIMEOUT_MS = 1000;
+    private static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+    private static ExecutorService sBacktrackingExecutor;
 
-    public RegexFilterPattern(SmsFilterPatternData data) {
+    private final String mRegex;
+    private final Pattern mPattern;
+    private final boolean mMayBacktrack;
+    private final boolean mTimeoutResult;
+    private final SmsFilter.OnPatternDisabledListener mDisabledListener;
+    private final AtomicInteger mConsecutiveTimeouts = new AtomicInteger();
+    private final AtomicBoolean mDisabled = new AtomicBoolean();
+
+    // Matchers are not thread safe, so keep one per thread
+    // rather than allocating a new one for every message
+    private final ThreadLocal<Matcher> mMatchers = new ThreadLocal<Matcher>() {
+        @Override
+        protected Matcher initialValue() {
+            return mPattern.matcher("");
+        }
+    };
+
+    private static final class MatchTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Makes the regex engine give up once the deadline has passed or
+    // the matching thread has been interrupted. Since charAt() is
+    // called for every character the engine looks at, the checks
+    // are only done every so often.
+    private static final class DeadlineCharSequence implements CharSequence {
+        private static final int CHECK_INTERVAL = 1024;
+
+        private final CharSequence mText;
+        private final long mDeadline;
+        private int mCountdown = CHECK_INTERVAL;
+
+        private DeadlineCharSequence(CharSequence text, long deadline) {
+            mText = text;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int length() {
+            return mText.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--mCountdown <= 0) {
+                mCountdown = CHECK_INTERVAL;
+                if (Thread.interrupted() || System.nanoTime() - mDeadline > 0) {
+                    throw new MatchTimeoutException();
+                }
+            }
+            return mText.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(mText.subSequence(start, end), mDeadline);
+        }
+
+        @Override
+        public String toString() {
+            return mText.toString();
+        }
+    }
+
+    // timeoutResult is what match() returns if the pattern
+    // times out or has been disabled
+    public RegexFilterPattern(SmsFilterPatternData data, boolean timeoutResult, SmsFilter.OnPatternDisabledListener disabledListener) {
         super(data);
+        mTimeoutResult = timeoutResult;
+        mDisabledListener = disabledListener;
 
         // We need to normalize the pattern ourselves since Android
         // doesn't support the CANON_EQ regex flag. Note that this
@@ -19,51 +110,154 @@ import java.util.regex.Pattern;
         // character (e.g. \u3060), NOT the escape sequence (e.g. \\u3060)
         String regexPattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
 
-        // If this is a wildcard pattern, convert it to regex syntax
-        if (getMode() == SmsFilterMode.WILDCARD) {
-            regexPattern = wildcardToRegex(regexPattern);
-        }
-
         int regexFlags = Pattern.UNICODE_CASE;
         if (!isCaseSensitive()) {
             regexFlags |= Pattern.CASE_INSENSITIVE;
         }
-        mMatcher = Pattern.compile(regexPattern, regexFlags).matcher("");
+        mPattern = Pattern.compile(regexPattern, regexFlags);
+        mRegex = regexPattern;
+        mMayBacktrack = mayBacktrack(regexPattern, !isCaseSensitive());
+    }
+
+    // Conservatively checks whether the pattern has the structure that
+    // causes catastrophic backtracking: a repeated group that contains
+    // another repetition or an alternation (e.g. (a+)+ or (a|ab)*), or
+    // many unbounded repetitions in a row (e.g. .*a.*b.*c)
+    private static boolean mayBacktrack(String regex, boolean foldCase) {
+        RegexNode node;
+        try {
+            node = RegexParser.parseForLiterals(regex, foldCase);
+        } catch (UnsupportedRegexException e) {
+            return true;
+        }
+        return countUnboundedRepeats(node, false) >= 3;
+    }
+
+    // Returns the number of unbounded repetitions in the node, or
+    // a large number if the node contains a nested repetition
+    private static int countUnboundedRepeats(RegexNode node, boolean repeated) {
+        switch (node.mType) {
+        case RegexNode.TYPE_UNKNOWN:
+            return repeated ? Integer.MAX_VALUE / 2 : 0;
+        case RegexNode.TYPE_ALTERNATE:
+        case RegexNode.TYPE_CONCAT: {
+            if (repeated && node.mType == RegexNode.TYPE_ALTERNATE) {
+                return Integer.MAX_VALUE / 2;
+            }
+            int count = 0;
+            for (RegexNode child : node.mChildren) {
+                count = Math.min(count + countUnboundedRepeats(child, repeated), Integer.MAX_VALUE / 2);
+            }
+            return count;
+        }
+        case RegexNode.TYPE_REPEAT: {
+            boolean multiple = node.mMax == RegexNode.UNBOUNDED || node.mMax > 1;
+            if (repeated && multiple) {
+                return Integer.MAX_VALUE / 2;
+            }
+            int count = countUnboundedRepeats(node.mChildren[0], repeated || multiple);
+            if (node.mMax == RegexNode.UNBOUNDED) {
+                count++;
+            }
+            return count;
+        }
+        default:
+            return 0;
+        }
+    }
+
+    private static synchronized ExecutorService getBacktrackingExecutor() {
+        if (sBacktrackingExecutor == null) {
+            sBacktrackingExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NekoSMS-regex");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sBacktrackingExecutor;
+    }
+
+    private boolean findWithTimeout(final String text) {
+        Future<Boolean> result = getBacktrackingExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MATCH_TIMEOUT_MS);
+                return mPattern.matcher(new DeadlineCharSequence(text, deadline)).find();
+            }
+        });
+
+        try {
+            boolean matches = result.get(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mConsecutiveTimeouts.set(0);
+            return matches;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            return onTimeout();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MatchTimeoutException) {
+                return onTimeout();
+            }
+            Xlog.e("Failed to match regex pattern %s", mRegex, e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return mTimeoutResult;
+        }
+    }
+
+    private boolean onTimeout() {
+        int timeouts = mConsecutiveTimeouts.incrementAndGet();
+        Xlog.w("Regex pattern %s took too long to match (%d times in a row)", mRegex, timeouts);
+        if (timeouts >= MAX_CONSECUTIVE_TIMEOUTS) {
+            disable();
+        }
+        return mTimeoutResult;
+    }
+
+    private void disable() {
+        // Several threads may time out at once, only report it once
+        if (!mDisabled.compareAndSet(false, true)) {
+            return;
+        }
+        Xlog.w("Regex pattern %s keeps timing out, disabling it", mRegex);
+        if (mDisabledListener != null) {
+            mDisabledListener.onPatternDisabled(getPattern());
+        }
+    }
+
+    public String getRegex() {
+        return mRegex;
     }
 
     @Override
     public boolean match(String sender, String body) {
+        if (mDisabled.get()) {
+            return mTimeoutResult;
+        }
+
+        String testString;
         switch (getField()) {
         case SENDER:
-            mMatcher.reset(sender);
+            testString = sender;
             break;
         case BODY:
-            mMatcher.reset(body);
+            testString = body;
             break;
+        default:
+            throw new AssertionError("Invalid field: " + getField());
         }
 
-        boolean matches = mMatcher.find();
-        mMatcher.reset("");
-        return matches;
-    }
-
-    private static String wildcardToRegex(String wildcardString) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('^');
-        for (int i = 0; i < wildcardString.length(); ++i) {
-            char c = wildcardString.charAt(i);
-            if (c == '*') {
-                sb.append(".*");
-            } else if (c == '?') {
-                sb.append('.');
-            } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
-                sb.append('\\');
-                sb.append(c);
-            } else {
-                sb.append(c);
-            }
+        if (mMayBacktrack) {
+            return findWithTimeout(testString);
         }
-        sb.append('$');
-        return sb.toString();
+
+        Matcher matcher = mMatchers.get();
+        matcher.reset(testString);
+        boolean matches = matcher.find();
+        matcher.reset("");
+        return matches;
     }
 }
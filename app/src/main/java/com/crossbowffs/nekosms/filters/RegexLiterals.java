@@ -0,0 +1,202 @@
+package com.crossbowffs.nekosms.filters;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Finds a set of literals, at least one of which must occur in any
+// string matched by a regex (e.g. "loan" or "credit" for the pattern
+// (loan|credit).*approved). Searching for the literals is much cheaper
+// than running the regex, so most messages can rule it out without
+// ever calling java.util.regex. Literals are case folded, which may
+// make them match more often, but never less often, than the regex.
+/* package */ final class RegexLiterals {
+    // Limits on how many alternatives we keep track of, so that
+    // e.g. [ab][ab][ab]... does not blow up exponentially
+    private static final int MAX_EXACT_SET_SIZE = 16;
+
+    // Literals shorter than this occur in nearly every message,
+    // so they are not worth checking for
+    private static final int MIN_LITERAL_LENGTH = 2;
+
+    // What we know about the strings matched by a node: either the
+    // exact set of strings it can match, or a set of literals one of
+    // which must occur in the match (null if we know nothing)
+    private static class Info {
+        private final Set<String> mExact;
+        private final Set<String> mRequired;
+
+        private Info(Set<String> exact, Set<String> required) {
+            mExact = exact;
+            mRequired = required;
+        }
+
+        public static Info exact(Set<String> exact) {
+            return new Info(exact, null);
+        }
+
+        public static Info required(Set<String> required) {
+            return new Info(null, required);
+        }
+
+        public static Info any() {
+            return new Info(null, null);
+        }
+
+        public Set<String> toRequired() {
+            return mExact != null ? mExact : mRequired;
+        }
+    }
+
+    private RegexLiterals() { }
+
+    // Returns the required literals of the pattern, or null if it
+    // does not have any that are worth searching for
+    public static String[] extract(RegexNode node) {
+        Set<String> literals = analyze(node).toRequired();
+        if (score(literals) < MIN_LITERAL_LENGTH) {
+            return null;
+        }
+        return literals.toArray(new String[literals.size()]);
+    }
+
+    private static Set<String> singleton(String s) {
+        Set<String> set = new LinkedHashSet<>();
+        set.add(s);
+        return set;
+    }
+
+    // A set of alternatives is only as selective as its
+    // shortest member; an unknown set matches everything
+    private static int score(Set<String> set) {
+        if (set == null) {
+            return 0;
+        }
+        int min = Integer.MAX_VALUE;
+        for (String s : set) {
+            min = Math.min(min, s.length());
+        }
+        return min;
+    }
+
+    // Both sets are required, pick the one that rules out
+    // more messages
+    private static Set<String> better(Set<String> a, Set<String> b) {
+        int scoreA = score(a);
+        int scoreB = score(b);
+        if (scoreA != scoreB) {
+            return scoreA > scoreB ? a : b;
+        } else if (a == null || b == null) {
+            return a == null ? b : a;
+        } else {
+            return a.size() <= b.size() ? a : b;
+        }
+    }
+
+    private static Set<String> product(Set<String> a, Set<String> b) {
+        if (a.size() * b.size() > MAX_EXACT_SET_SIZE) {
+            return null;
+        }
+        Set<String> result = new LinkedHashSet<>();
+        for (String x : a) {
+            for (String y : b) {
+                result.add(x + y);
+            }
+        }
+        return result;
+    }
+
+    private static Info analyze(RegexNode node) {
+        switch (node.mType) {
+        case RegexNode.TYPE_EMPTY:
+        case RegexNode.TYPE_ASSERT:
+            return Info.exact(singleton(""));
+        case RegexNode.TYPE_CHAR:
+            // Text is folded one char at a time when searching, which
+            // does not fold supplementary characters
+            if (node.mFoldCase && Character.isSupplementaryCodePoint(node.mValue)) {
+                return Info.any();
+            }
+            return Info.exact(singleton(new String(Character.toChars(node.mValue))));
+        case RegexNode.TYPE_CONCAT:
+            return analyzeConcat(node.mChildren);
+        case RegexNode.TYPE_ALTERNATE:
+            return analyzeAlternate(node.mChildren);
+        case RegexNode.TYPE_REPEAT:
+            return analyzeRepeat(node.mChildren[0], node.mMin, node.mMax);
+        default:
+            return Info.any();
+        }
+    }
+
+    private static Info analyzeConcat(RegexNode[] children) {
+        // Adjacent exact children are combined into longer literals
+        // as long as the number of combinations stays small; every
+        // run of them (and every inexact child) is required, so we
+        // keep the best one
+        Set<String> exact = singleton("");
+        Set<String> best = null;
+        boolean wholeExact = true;
+        for (RegexNode child : children) {
+            Info info = analyze(child);
+            if (info.mExact != null) {
+                Set<String> combined = exact == null ? null : product(exact, info.mExact);
+                if (combined == null) {
+                    best = better(best, exact);
+                    wholeExact &= exact == null;
+                    combined = info.mExact;
+                }
+                exact = combined;
+            } else {
+                best = better(best, better(exact, info.mRequired));
+                exact = null;
+                wholeExact = false;
+            }
+        }
+        if (wholeExact) {
+            return Info.exact(exact);
+        }
+        return Info.required(better(best, exact));
+    }
+
+    private static Info analyzeAlternate(RegexNode[] children) {
+        Set<String> exact = new LinkedHashSet<>();
+        Set<String> required = new LinkedHashSet<>();
+        for (RegexNode child : children) {
+            Info info = analyze(child);
+            if (exact != null && info.mExact != null && exact.size() + info.mExact.size() <= MAX_EXACT_SET_SIZE) {
+                exact.addAll(info.mExact);
+            } else {
+                exact = null;
+            }
+
+            // If any branch has no required literals,
+            // neither does the alternation
+            Set<String> childRequired = info.toRequired();
+            if (required != null && childRequired != null) {
+                required.addAll(childRequired);
+            } else {
+                required = null;
+            }
+        }
+        if (exact != null) {
+            return Info.exact(exact);
+        }
+        return Info.required(required);
+    }
+
+    private static Info analyzeRepeat(RegexNode child, int min, int max) {
+        Info info = analyze(child);
+        if (min == 1 && max == 1) {
+            return info;
+        } else if (min == 0 && max == 1 && info.mExact != null && info.mExact.size() < MAX_EXACT_SET_SIZE) {
+            // Keep optional parts exact, e.g. colou?r -> color, colour
+            Set<String> exact = new LinkedHashSet<>(info.mExact);
+            exact.add("");
+            return Info.exact(exact);
+        } else if (min == 0) {
+            return Info.any();
+        } else {
+            return Info.required(info.toRequired());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.crossbowffs.nekosms.filters;
+
+// Syntax tree of a parsed regex pattern. Group captures and
+// greedy/lazy quantifiers are not represented, since they do not
+// affect whether the pattern matches.
+/* package */ final class RegexNode {
+    public static final int TYPE_EMPTY = 0;
+    public static final int TYPE_CHAR = 1;
+    public static final int TYPE_CLASS = 2;
+    public static final int TYPE_CONCAT = 3;
+    public static final int TYPE_ALTERNATE = 4;
+    public static final int TYPE_REPEAT = 5;
+    public static final int TYPE_ASSERT = 6;
+
+    // Only produced when parsing for literal extraction: stands in for
+    // a construct the automaton cannot handle (backreferences,
+    // lookaround, etc.) and may match any string
+    public static final int TYPE_UNKNOWN = 7;
+
+    public static final int ASSERT_BEGIN_TEXT = 0;
+    public static final int ASSERT_END_TEXT = 1;
+    public static final int ASSERT_END_LINE = 2;
+    public static final int ASSERT_WORD_BOUNDARY = 3;
+    public static final int ASSERT_NOT_WORD_BOUNDARY = 4;
+
+    public static final int UNBOUNDED = -1;
+
+    final int mType;
+    final int mValue;
+    final boolean mFoldCase;
+    final RegexCharClass mCharClass;
+    final RegexNode[] mChildren;
+    final int mMin;
+    final int mMax;
+
+    private RegexNode(int type, int value, boolean foldCase, RegexCharClass charClass,
+                      RegexNode[] children, int min, int max) {
+        mType = type;
+        mValue = value;
+        mFoldCase = foldCase;
+        mCharClass = charClass;
+        mChildren = children;
+        mMin = min;
+        mMax = max;
+    }
+
+    public static RegexNode empty() {
+        return new RegexNode(TYPE_EMPTY, 0, false, null, null, 0, 0);
+    }
+
+    public static RegexNode character(int c, boolean foldCase) {
+        return new RegexNode(TYPE_CHAR, c, foldCase, null, null, 0, 0);
+    }
+
+    public static RegexNode charClass(RegexCharClass charClass) {
+        return new RegexNode(TYPE_CLASS, 0, false, charClass, null, 0, 0);
+    }
+
+    public static RegexNode concat(RegexNode[] children) {
+        return new RegexNode(TYPE_CONCAT, 0, false, null, children, 0, 0);
+    }
+
+    public static RegexNode alternate(RegexNode[] children) {
+        return new RegexNode(TYPE_ALTERNATE, 0, false, null, children, 0, 0);
+    }
+
+    public static RegexNode repeat(RegexNode child, int min, int max) {
+        return new RegexNode(TYPE_REPEAT, 0, false, null, new RegexNode[] {child}, min, max);
+    }
+
+    public static RegexNode assertion(int kind) {
+        return new RegexNode(TYPE_ASSERT, kind, false, null, null, 0, 0);
+    }
+
+    public static RegexNode unknown() {
+        return new RegexNode(TYPE_UNKNOWN, 0, false, null, null, 0, 0);
+    }
+}
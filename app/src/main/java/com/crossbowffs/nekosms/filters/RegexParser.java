@@ -0,0 +1,647 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+import java.util.ArrayList;
+
+// Parses the subset of java.util.regex syntax that can be compiled
+// into a RegexProgram. This only has to handle valid patterns (they
+// are always compiled by java.util.regex first); anything it does not
+// understand, or that cannot be matched by an automaton (backreferences,
+// lookaround, possessive quantifiers, etc.), throws an
+// UnsupportedRegexException so the pattern falls back to java.util.regex.
+//
+// When parsing only to extract required literals, such constructs
+// instead become TYPE_UNKNOWN nodes (or are replaced by something that
+// matches a superset of the same strings), since it is still useful
+// to know what the rest of the pattern must match.
+/* package */ final class RegexParser {
+    private static final int FLAG_FOLD_CASE = 1;
+    private static final int FLAG_DOT_ALL = 2;
+    private static final int FLAG_MULTILINE = 4;
+    private static final int FLAG_UNIX_LINES = 8;
+
+    // Counted repetitions are expanded when compiled, so keep
+    // them small enough to not blow up the program
+    private static final int MAX_REPEAT = 1000;
+
+    private final String mPattern;
+    private final boolean mLenient;
+    private int mPos;
+    private int mFlags;
+
+    private RegexParser(String pattern, boolean foldCase, boolean lenient) {
+        mPattern = pattern;
+        mLenient = lenient;
+        mFlags = foldCase ? FLAG_FOLD_CASE : 0;
+    }
+
+    private static RegexNode parse(String pattern, boolean foldCase, boolean lenient) {
+        RegexParser parser = new RegexParser(pattern, foldCase, lenient);
+        RegexNode node = parser.parseAlternation();
+        if (!parser.atEnd()) {
+            throw new UnsupportedRegexException("Unexpected ')' at index " + parser.mPos);
+        }
+        return node;
+    }
+
+    public static RegexNode parse(String pattern, boolean foldCase) {
+        return parse(pattern, foldCase, false);
+    }
+
+    // The returned tree may contain TYPE_UNKNOWN nodes, and can
+    // only be used to find literals required by the pattern
+    public static RegexNode parseForLiterals(String pattern, boolean foldCase) {
+        return parse(pattern, foldCase, true);
+    }
+
+    private RegexNode unsupported(String message) {
+        if (!mLenient) {
+            throw new UnsupportedRegexException(message);
+        }
+        return RegexNode.unknown();
+    }
+
+    private boolean atEnd() {
+        return mPos >= mPattern.length();
+    }
+
+    private boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    private int peek() {
+        return mPattern.codePointAt(mPos);
+    }
+
+    private int next() {
+        if (atEnd()) {
+            throw new UnsupportedRegexException("Unexpected end of pattern");
+        }
+        int c = mPattern.codePointAt(mPos);
+        mPos += Character.charCount(c);
+        return c;
+    }
+
+    private boolean consume(char c) {
+        if (!atEnd() && mPattern.charAt(mPos) == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private static RegexNode fromList(ArrayList<RegexNode> nodes, boolean alternate) {
+        if (nodes.isEmpty()) {
+            return RegexNode.empty();
+        } else if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        RegexNode[] children = nodes.toArray(new RegexNode[nodes.size()]);
+        return alternate ? RegexNode.alternate(children) : RegexNode.concat(children);
+    }
+
+    private RegexNode parseAlternation() {
+        ArrayList<RegexNode> branches = new ArrayList<>();
+        branches.add(parseConcat());
+        while (consume('|')) {
+            branches.add(parseConcat());
+        }
+        return fromList(branches, true);
+    }
+
+    private RegexNode parseConcat() {
+        ArrayList<RegexNode> items = new ArrayList<>();
+        while (!atEnd() && peek() != '|' && peek() != ')') {
+            if (mPattern.startsWith("\\Q", mPos)) {
+                // A quantifier after \Q...\E only applies to the
+                // last quoted character
+                mPos += 2;
+                int end = mPattern.indexOf("\\E", mPos);
+                if (end < 0) {
+                    end = mPattern.length();
+                }
+                RegexNode last = null;
+                while (mPos < end) {
+                    if (last != null) {
+                        items.add(last);
+                    }
+                    last = literal(next());
+                }
+                mPos = Math.min(end + 2, mPattern.length());
+                if (last != null) {
+                    items.add(parseQuantifier(last));
+                }
+                continue;
+            }
+
+            // Null means the atom was a flag group like (?i),
+            // which does not match anything itself
+            RegexNode atom = parseAtom();
+            if (atom != null) {
+                items.add(parseQuantifier(atom));
+            }
+        }
+        return fromList(items, false);
+    }
+
+    private int parseNumber() {
+        int start = mPos;
+        int value = 0;
+        while (!atEnd() && peek() >= '0' && peek() <= '9') {
+            value = value * 10 + (next() - '0');
+            if (value > MAX_REPEAT) {
+                throw new UnsupportedRegexException("Repetition count too large");
+            }
+        }
+        return mPos == start ? -1 : value;
+    }
+
+    private RegexNode parseQuantifier(RegexNode atom) {
+        if (atEnd()) {
+            return atom;
+        }
+
+        int min;
+        int max;
+        switch (peek()) {
+        case '*':
+            mPos++;
+            min = 0;
+            max = RegexNode.UNBOUNDED;
+            break;
+        case '+':
+            mPos++;
+            min = 1;
+            max = RegexNode.UNBOUNDED;
+            break;
+        case '?':
+            mPos++;
+            min = 0;
+            max = 1;
+            break;
+        case '{':
+            mPos++;
+            min = parseNumber();
+            max = min;
+            if (consume(',')) {
+                max = parseNumber();
+                if (max < 0) {
+                    max = RegexNode.UNBOUNDED;
+                }
+            }
+            if (min < 0 || !consume('}') || (max != RegexNode.UNBOUNDED && max < min)) {
+                throw new UnsupportedRegexException("Invalid repetition at index " + mPos);
+            }
+            break;
+        default:
+            return atom;
+        }
+
+        // Lazy quantifiers match the same set of strings as greedy
+        // ones, but possessive quantifiers do not (they only match
+        // a subset, so their literals are still required)
+        if (consume('+') && !mLenient) {
+            throw new UnsupportedRegexException("Possessive quantifiers are not supported");
+        }
+        consume('?');
+        return RegexNode.repeat(atom, min, max);
+    }
+
+    private RegexNode literal(int c) {
+        if (hasFlag(FLAG_FOLD_CASE)) {
+            return RegexNode.character(StringUtils.foldCase(c), true);
+        } else {
+            return RegexNode.character(c, false);
+        }
+    }
+
+    private RegexNode parseAtom() {
+        int c = next();
+        switch (c) {
+        case '(':
+            return parseGroup();
+        case '[':
+            return RegexNode.charClass(parseClass());
+        case '.':
+            if (hasFlag(FLAG_UNIX_LINES)) {
+                return unsupported("UNIX_LINES is not supported");
+            }
+            return RegexNode.charClass(RegexCharClass.forDot(hasFlag(FLAG_DOT_ALL)));
+        case '^':
+            return anchor(RegexNode.ASSERT_BEGIN_TEXT);
+        case '$':
+            return anchor(RegexNode.ASSERT_END_LINE);
+        case '\\':
+            return parseEscape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+            throw new UnsupportedRegexException("Dangling quantifier at index " + mPos);
+        default:
+            return literal(c);
+        }
+    }
+
+    private RegexNode anchor(int kind) {
+        if (hasFlag(FLAG_MULTILINE | FLAG_UNIX_LINES)) {
+            return unsupported("MULTILINE and UNIX_LINES anchors are not supported");
+        }
+        return RegexNode.assertion(kind);
+    }
+
+    private RegexNode parseGroup() {
+        int savedFlags = mFlags;
+        String lookaround = null;
+        if (consume('?')) {
+            int c = next();
+            if (c == '<' && !atEnd() && (peek() == '=' || peek() == '!')) {
+                mPos++;
+                lookaround = "Lookbehind is not supported";
+            } else if (c == '<') {
+                int end = mPattern.indexOf('>', mPos);
+                if (end < 0) {
+                    throw new UnsupportedRegexException("Unclosed group name");
+                }
+                mPos = end + 1;
+            } else if (c == '=' || c == '!') {
+                lookaround = "Lookahead is not supported";
+            } else if (c == '>') {
+                // Like possessive quantifiers, atomic groups only
+                // match a subset of what a plain group would
+                if (!mLenient) {
+                    throw new UnsupportedRegexException("Atomic groups are not supported");
+                }
+            } else if (c != ':') {
+                mPos--;
+                if (parseFlags()) {
+                    // (?flags) applies to the rest of the enclosing group
+                    return null;
+                }
+            }
+        }
+
+        RegexNode node = parseAlternation();
+        if (!consume(')')) {
+            throw new UnsupportedRegexException("Unclosed group");
+        }
+        mFlags = savedFlags;
+        if (lookaround != null) {
+            return unsupported(lookaround);
+        }
+        return node;
+    }
+
+    // Returns true if the flags were terminated by ')',
+    // or false if they were terminated by ':'
+    private boolean parseFlags() {
+        boolean enable = true;
+        while (true) {
+            int c = next();
+            int flag;
+            switch (c) {
+            case ')':
+                return true;
+            case ':':
+                return false;
+            case '-':
+                enable = false;
+                continue;
+            case 'i':
+                flag = FLAG_FOLD_CASE;
+                break;
+            case 's':
+                flag = FLAG_DOT_ALL;
+                break;
+            case 'm':
+                flag = FLAG_MULTILINE;
+                break;
+            case 'd':
+                flag = FLAG_UNIX_LINES;
+                break;
+            case 'u':
+            case 'U':
+                flag = 0;
+                break;
+            default:
+                throw new UnsupportedRegexException("Unsupported group or flag: " + (char)c);
+            }
+            if (enable) {
+                mFlags |= flag;
+            } else {
+                mFlags &= ~flag;
+            }
+        }
+    }
+
+    private RegexNode parseEscape() {
+        int c = next();
+        switch (c) {
+        case 'b':
+            return RegexNode.assertion(RegexNode.ASSERT_WORD_BOUNDARY);
+        case 'B':
+            return RegexNode.assertion(RegexNode.ASSERT_NOT_WORD_BOUNDARY);
+        case 'A':
+            return RegexNode.assertion(RegexNode.ASSERT_BEGIN_TEXT);
+        case 'z':
+            return RegexNode.assertion(RegexNode.ASSERT_END_TEXT);
+        case 'Z':
+            return RegexNode.assertion(RegexNode.ASSERT_END_LINE);
+        }
+
+        try {
+            RegexCharClass charClass = parseClassEscape(c);
+            if (charClass != null) {
+                return RegexNode.charClass(charClass);
+            }
+            return literal(parseCharEscape(c));
+        } catch (UnsupportedRegexException e) {
+            if (!mLenient) {
+                throw e;
+            }
+
+            // Skip over the group number or name of a backreference
+            if (c >= '1' && c <= '9') {
+                while (!atEnd() && peek() >= '0' && peek() <= '9') {
+                    mPos++;
+                }
+            } else if (c == 'k' && consume('<')) {
+                int end = mPattern.indexOf('>', mPos);
+                mPos = end < 0 ? mPattern.length() : end + 1;
+            }
+            return RegexNode.unknown();
+        }
+    }
+
+    // Parses escapes that represent a set of characters (\d, \p{L}, etc.),
+    // returns null if the escape is not one of them
+    private RegexCharClass parseClassEscape(int c) {
+        switch (c) {
+        case 'd':
+        case 'D':
+            return RegexCharClass.forPredicate(RegexCharClass.PREDICATE_DIGIT, c == 'D');
+        case 'w':
+        case 'W':
+            return RegexCharClass.forPredicate(RegexCharClass.PREDICATE_WORD, c == 'W');
+        case 's':
+        case 'S':
+            return RegexCharClass.forPredicate(RegexCharClass.PREDICATE_SPACE, c == 'S');
+        case 'p':
+        case 'P':
+            return parseProperty(c == 'P');
+        default:
+            return null;
+        }
+    }
+
+    private int parseHex(int digits) {
+        if (mPos + digits > mPattern.length()) {
+            throw new UnsupportedRegexException("Invalid hex escape");
+        }
+        try {
+            int value = Integer.parseInt(mPattern.substring(mPos, mPos + digits), 16);
+            mPos += digits;
+            return value;
+        } catch (NumberFormatException e) {
+            throw new UnsupportedRegexException("Invalid hex escape");
+        }
+    }
+
+    private int parseCharEscape(int c) {
+        switch (c) {
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 'f':
+            return '\f';
+        case 'a':
+            return 0x07;
+        case 'e':
+            return 0x1b;
+        case 'c':
+            return next() ^ 64;
+        case 'u':
+            return parseHex(4);
+        case 'x':
+            if (consume('{')) {
+                int end = mPattern.indexOf('}', mPos);
+                if (end < 0) {
+                    throw new UnsupportedRegexException("Invalid hex escape");
+                }
+                int value = parseHex(end - mPos);
+                mPos++;
+                if (value > Character.MAX_CODE_POINT) {
+                    throw new UnsupportedRegexException("Invalid hex escape");
+                }
+                return value;
+            }
+            return parseHex(2);
+        case '0':
+            int value = 0;
+            for (int i = 0; i < 3 && !atEnd() && peek() >= '0' && peek() <= '7'; ++i) {
+                int newValue = value * 8 + (peek() - '0');
+                if (newValue > 0377) {
+                    break;
+                }
+                value = newValue;
+                mPos++;
+            }
+            return value;
+        default:
+            // Backreferences and other escapes like \G, \R, \X, \h,
+            // and \k<name>; non-alphanumeric characters are literals
+            if (Character.isLetterOrDigit(c)) {
+                throw new UnsupportedRegexException("Unsupported escape: \\" + (char)c);
+            }
+            return c;
+        }
+    }
+
+    private RegexCharClass parseClass() {
+        if (!atEnd() && peek() == ':') {
+            throw new UnsupportedRegexException("POSIX classes are not supported");
+        }
+
+        boolean negated = consume('^');
+        RegexCharClass.Builder builder = new RegexCharClass.Builder();
+        boolean first = true;
+        while (true) {
+            if (atEnd()) {
+                throw new UnsupportedRegexException("Unclosed character class");
+            }
+
+            int c = next();
+            if (c == ']') {
+                if (first) {
+                    throw new UnsupportedRegexException("Empty character class");
+                }
+                break;
+            }
+            first = false;
+
+            if (c == '[') {
+                builder.addClass(parseClass());
+                continue;
+            } else if ((c == '&' || c == '-') && !atEnd() && peek() == c) {
+                throw new UnsupportedRegexException("Character class operators are not supported");
+            }
+
+            int start = c;
+            if (c == '\\') {
+                int escape = next();
+                RegexCharClass charClass = parseClassEscape(escape);
+                if (charClass != null) {
+                    builder.addClass(charClass);
+                    continue;
+                }
+                start = parseCharEscape(escape);
+            }
+
+            if (mPattern.startsWith("-", mPos) && mPos + 1 < mPattern.length() && mPattern.charAt(mPos + 1) != ']') {
+                mPos++;
+                int end = next();
+                if (end == '[') {
+                    throw new UnsupportedRegexException("Invalid range in character class");
+                } else if (end == '\\') {
+                    end = parseCharEscape(next());
+                }
+                if (end < start) {
+                    throw new UnsupportedRegexException("Invalid range in character class");
+                }
+                builder.addRange(start, end);
+            } else {
+                builder.addRange(start, start);
+            }
+        }
+        return builder.build(hasFlag(FLAG_FOLD_CASE), negated);
+    }
+
+    private RegexCharClass parseProperty(boolean negated) {
+        String name;
+        if (consume('{')) {
+            int end = mPattern.indexOf('}', mPos);
+            if (end < 0) {
+                throw new UnsupportedRegexException("Unclosed property name");
+            }
+            name = mPattern.substring(mPos, end);
+            mPos = end + 1;
+        } else {
+            name = new String(Character.toChars(next()));
+        }
+
+        if (name.startsWith("Is")) {
+            name = name.substring(2);
+        }
+        int mask = getCategoryMask(name);
+        if (mask == 0) {
+            throw new UnsupportedRegexException("Unsupported property: " + name);
+        }
+        return RegexCharClass.forCategories(mask, hasFlag(FLAG_FOLD_CASE), negated);
+    }
+
+    private static int categoryBits(int... types) {
+        int mask = 0;
+        for (int type : types) {
+            mask |= 1 << type;
+        }
+        return mask;
+    }
+
+    private static int getCategoryMask(String name) {
+        switch (name) {
+        case "L":
+            return categoryBits(Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER,
+                Character.TITLECASE_LETTER, Character.MODIFIER_LETTER, Character.OTHER_LETTER);
+        case "LC":
+        case "L&":
+            return categoryBits(Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER,
+                Character.TITLECASE_LETTER);
+        case "Lu":
+            return categoryBits(Character.UPPERCASE_LETTER);
+        case "Ll":
+            return categoryBits(Character.LOWERCASE_LETTER);
+        case "Lt":
+            return categoryBits(Character.TITLECASE_LETTER);
+        case "Lm":
+            return categoryBits(Character.MODIFIER_LETTER);
+        case "Lo":
+            return categoryBits(Character.OTHER_LETTER);
+        case "M":
+            return categoryBits(Character.NON_SPACING_MARK, Character.COMBINING_SPACING_MARK,
+                Character.ENCLOSING_MARK);
+        case "Mn":
+            return categoryBits(Character.NON_SPACING_MARK);
+        case "Mc":
+            return categoryBits(Character.COMBINING_SPACING_MARK);
+        case "Me":
+            return categoryBits(Character.ENCLOSING_MARK);
+        case "N":
+            return categoryBits(Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER,
+                Character.OTHER_NUMBER);
+        case "Nd":
+            return categoryBits(Character.DECIMAL_DIGIT_NUMBER);
+        case "Nl":
+            return categoryBits(Character.LETTER_NUMBER);
+        case "No":
+            return categoryBits(Character.OTHER_NUMBER);
+        case "P":
+            return categoryBits(Character.CONNECTOR_PUNCTUATION, Character.DASH_PUNCTUATION,
+                Character.START_PUNCTUATION, Character.END_PUNCTUATION,
+                Character.INITIAL_QUOTE_PUNCTUATION, Character.FINAL_QUOTE_PUNCTUATION,
+                Character.OTHER_PUNCTUATION);
+        case "Pc":
+            return categoryBits(Character.CONNECTOR_PUNCTUATION);
+        case "Pd":
+            return categoryBits(Character.DASH_PUNCTUATION);
+        case "Ps":
+            return categoryBits(Character.START_PUNCTUATION);
+        case "Pe":
+            return categoryBits(Character.END_PUNCTUATION);
+        case "Pi":
+            return categoryBits(Character.INITIAL_QUOTE_PUNCTUATION);
+        case "Pf":
+            return categoryBits(Character.FINAL_QUOTE_PUNCTUATION);
+        case "Po":
+            return categoryBits(Character.OTHER_PUNCTUATION);
+        case "S":
+            return categoryBits(Character.MATH_SYMBOL, Character.CURRENCY_SYMBOL,
+                Character.MODIFIER_SYMBOL, Character.OTHER_SYMBOL);
+        case "Sm":
+            return categoryBits(Character.MATH_SYMBOL);
+        case "Sc":
+            return categoryBits(Character.CURRENCY_SYMBOL);
+        case "Sk":
+            return categoryBits(Character.MODIFIER_SYMBOL);
+        case "So":
+            return categoryBits(Character.OTHER_SYMBOL);
+        case "Z":
+            return categoryBits(Character.SPACE_SEPARATOR, Character.LINE_SEPARATOR,
+                Character.PARAGRAPH_SEPARATOR);
+        case "Zs":
+            return categoryBits(Character.SPACE_SEPARATOR);
+        case "Zl":
+            return categoryBits(Character.LINE_SEPARATOR);
+        case "Zp":
+            return categoryBits(Character.PARAGRAPH_SEPARATOR);
+        case "C":
+            return categoryBits(Character.CONTROL, Character.FORMAT, Character.PRIVATE_USE,
+                Character.SURROGATE, Character.UNASSIGNED);
+        case "Cc":
+            return categoryBits(Character.CONTROL);
+        case "Cf":
+            return categoryBits(Character.FORMAT);
+        case "Co":
+            return categoryBits(Character.PRIVATE_USE);
+        case "Cs":
+            return categoryBits(Character.SURROGATE);
+        case "Cn":
+            return categoryBits(Character.UNASSIGNED);
+        default:
+            return 0;
+        }
+    }
+}
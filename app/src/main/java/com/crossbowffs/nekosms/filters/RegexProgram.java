@@ -0,0 +1,193 @@
+package com.crossbowffs.nekosms.filters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Thompson NFA for a set of regex patterns, stored as flat instruction
+// arrays. Each pattern starts at its own instruction and ends with a
+// MATCH instruction that reports the pattern ID. Instructions that
+// consume a character always continue at the next instruction.
+/* package */ final class RegexProgram {
+    public static final int OP_CHAR = 0;
+    public static final int OP_CHAR_FOLD = 1;
+    public static final int OP_CLASS = 2;
+    public static final int OP_SPLIT = 3;
+    public static final int OP_JUMP = 4;
+    public static final int OP_ASSERT = 5;
+    public static final int OP_MATCH = 6;
+
+    // Limit the size of a single pattern, so that a pattern
+    // like (a{1000}){1000} cannot take down the phone process
+    private static final int MAX_PATTERN_SIZE = 10000;
+
+    public static class Builder {
+        private int[] mOps = new int[64];
+        private int[] mArg1 = new int[64];
+        private int[] mArg2 = new int[64];
+        private int mSize;
+        private int mPatternStart;
+        private final ArrayList<RegexCharClass> mClasses = new ArrayList<>();
+        private final ArrayList<Integer> mStarts = new ArrayList<>();
+        private boolean mUsesWordBoundary;
+
+        public boolean isEmpty() {
+            return mStarts.isEmpty();
+        }
+
+        public Builder add(RegexNode node, int patternId) {
+            mPatternStart = mSize;
+            int classCount = mClasses.size();
+            boolean usesWordBoundary = mUsesWordBoundary;
+            try {
+                emit(node);
+                append(OP_MATCH, patternId, 0);
+            } catch (UnsupportedRegexException e) {
+                // Roll back the partially emitted pattern
+                mSize = mPatternStart;
+                mClasses.subList(classCount, mClasses.size()).clear();
+                mUsesWordBoundary = usesWordBoundary;
+                throw e;
+            }
+            mStarts.add(mPatternStart);
+            return this;
+        }
+
+        public RegexProgram build() {
+            return new RegexProgram(this);
+        }
+
+        private int append(int op, int arg1, int arg2) {
+            if (mSize - mPatternStart >= MAX_PATTERN_SIZE) {
+                throw new UnsupportedRegexException("Pattern is too large");
+            }
+            if (mSize == mOps.length) {
+                mOps = Arrays.copyOf(mOps, mSize * 2);
+                mArg1 = Arrays.copyOf(mArg1, mSize * 2);
+                mArg2 = Arrays.copyOf(mArg2, mSize * 2);
+            }
+            mOps[mSize] = op;
+            mArg1[mSize] = arg1;
+            mArg2[mSize] = arg2;
+            return mSize++;
+        }
+
+        private void emit(RegexNode node) {
+            switch (node.mType) {
+            case RegexNode.TYPE_EMPTY:
+                break;
+            case RegexNode.TYPE_CHAR:
+                append(node.mFoldCase ? OP_CHAR_FOLD : OP_CHAR, node.mValue, 0);
+                break;
+            case RegexNode.TYPE_CLASS:
+                mClasses.add(node.mCharClass);
+                append(OP_CLASS, mClasses.size() - 1, 0);
+                break;
+            case RegexNode.TYPE_CONCAT:
+                for (RegexNode child : node.mChildren) {
+                    emit(child);
+                }
+                break;
+            case RegexNode.TYPE_ALTERNATE:
+                emitAlternate(node.mChildren);
+                break;
+            case RegexNode.TYPE_REPEAT:
+                emitRepeat(node.mChildren[0], node.mMin, node.mMax);
+                break;
+            case RegexNode.TYPE_ASSERT:
+                if (node.mValue == RegexNode.ASSERT_WORD_BOUNDARY ||
+                    node.mValue == RegexNode.ASSERT_NOT_WORD_BOUNDARY) {
+                    mUsesWordBoundary = true;
+                }
+                append(OP_ASSERT, node.mValue, 0);
+                break;
+            default:
+                throw new AssertionError("Invalid node type: " + node.mType);
+            }
+        }
+
+        private void emitAlternate(RegexNode[] children) {
+            int[] jumps = new int[children.length - 1];
+            for (int i = 0; i < children.length - 1; ++i) {
+                int split = append(OP_SPLIT, mSize + 1, 0);
+                emit(children[i]);
+                jumps[i] = append(OP_JUMP, 0, 0);
+                mArg2[split] = mSize;
+            }
+            emit(children[children.length - 1]);
+            for (int jump : jumps) {
+                mArg1[jump] = mSize;
+            }
+        }
+
+        private void emitRepeat(RegexNode child, int min, int max) {
+            for (int i = 0; i < min; ++i) {
+                emit(child);
+            }
+
+            if (max == RegexNode.UNBOUNDED) {
+                int split = append(OP_SPLIT, mSize + 1, 0);
+                emit(child);
+                append(OP_JUMP, split, 0);
+                mArg2[split] = mSize;
+            } else if (max > min) {
+                // x{0,3} is compiled as (x(x(x)?)?)?, except that
+                // every optional part can skip directly to the end
+                int[] splits = new int[max - min];
+                for (int i = 0; i < splits.length; ++i) {
+                    splits[i] = append(OP_SPLIT, mSize + 1, 0);
+                    emit(child);
+                }
+                for (int split : splits) {
+                    mArg2[split] = mSize;
+                }
+            }
+        }
+    }
+
+    private final int[] mOps;
+    private final int[] mArg1;
+    private final int[] mArg2;
+    private final RegexCharClass[] mClasses;
+    private final int[] mStarts;
+    private final boolean mUsesWordBoundary;
+
+    private RegexProgram(Builder builder) {
+        mOps = Arrays.copyOf(builder.mOps, builder.mSize);
+        mArg1 = Arrays.copyOf(builder.mArg1, builder.mSize);
+        mArg2 = Arrays.copyOf(builder.mArg2, builder.mSize);
+        mClasses = builder.mClasses.toArray(new RegexCharClass[builder.mClasses.size()]);
+        mStarts = new int[builder.mStarts.size()];
+        for (int i = 0; i < mStarts.length; ++i) {
+            mStarts[i] = builder.mStarts.get(i);
+        }
+        mUsesWordBoundary = builder.mUsesWordBoundary;
+    }
+
+    public int size() {
+        return mOps.length;
+    }
+
+    public int getOp(int pc) {
+        return mOps[pc];
+    }
+
+    public int getArg1(int pc) {
+        return mArg1[pc];
+    }
+
+    public int getArg2(int pc) {
+        return mArg2[pc];
+    }
+
+    public RegexCharClass getCharClass(int index) {
+        return mClasses[index];
+    }
+
+    public int[] getStarts() {
+        return mStarts;
+    }
+
+    public boolean usesWordBoundary() {
+        return mUsesWordBoundary;
+    }
+}
@@ -0,0 +1,400 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.utils.StringUtils;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Matches every regex pattern in the index in a single pass over the
+// input. The patterns are compiled into one NFA, and DFA states (sets
+// of NFA threads) are built lazily as the input is scanned, so the
+// work done for a character seen before in the same state is a single
+// table lookup. Once too many DFA states have been built, the rest of
+// the input is scanned by simulating the NFA directly, and the cache
+// is thrown away before the next search.
+//
+// Since the cache is updated while searching, an instance must only
+// be used by one thread at a time. The program itself is immutable
+// and can be shared by the instances of each thread.
+/* package */ final class RegexSetIndex {
+    private static final int MAX_DFA_STATES = 1000;
+    private static final int ASCII_TABLE_SIZE = 128;
+
+    // What the previous character was, which is needed to
+    // evaluate ^ and \b at the current position
+    private static final int CONTEXT_START = 0;
+    private static final int CONTEXT_WORD = 1;
+    private static final int CONTEXT_NOT_WORD = 2;
+
+    private static final int[] NO_MATCHES = new int[0];
+
+    private static final class Transition {
+        private final DfaState mNext;
+        private final int[] mMatches;
+
+        private Transition(DfaState next, int[] matches) {
+            mNext = next;
+            mMatches = matches;
+        }
+    }
+
+    private static final class DfaState {
+        private final int[] mPcs;
+        private final int mContext;
+        private final int mHash;
+        private Transition[] mAsciiTransitions;
+        private int[] mOtherKeys;
+        private Transition[] mOtherTransitions;
+        private int mOtherCount;
+        private int[] mEndMatches;
+
+        private DfaState(int[] pcs, int context) {
+            mPcs = pcs;
+            mContext = context;
+            mHash = 31 * Arrays.hashCode(pcs) + context;
+        }
+
+        private Transition getTransition(int c) {
+            if (c < ASCII_TABLE_SIZE) {
+                return mAsciiTransitions == null ? null : mAsciiTransitions[c];
+            }
+            if (mOtherKeys == null) {
+                return null;
+            }
+            int index = Arrays.binarySearch(mOtherKeys, 0, mOtherCount, c);
+            return index < 0 ? null : mOtherTransitions[index];
+        }
+
+        private void putTransition(int c, Transition transition) {
+            if (c < ASCII_TABLE_SIZE) {
+                if (mAsciiTransitions == null) {
+                    mAsciiTransitions = new Transition[ASCII_TABLE_SIZE];
+                }
+                mAsciiTransitions[c] = transition;
+                return;
+            }
+
+            if (mOtherKeys == null) {
+                mOtherKeys = new int[4];
+                mOtherTransitions = new Transition[4];
+            } else if (mOtherCount == mOtherKeys.length) {
+                mOtherKeys = Arrays.copyOf(mOtherKeys, mOtherCount * 2);
+                mOtherTransitions = Arrays.copyOf(mOtherTransitions, mOtherCount * 2);
+            }
+
+            // Keep keys sorted so we can binary search them
+            int index = -Arrays.binarySearch(mOtherKeys, 0, mOtherCount, c) - 1;
+            System.arraycopy(mOtherKeys, index, mOtherKeys, index + 1, mOtherCount - index);
+            System.arraycopy(mOtherTransitions, index, mOtherTransitions, index + 1, mOtherCount - index);
+            mOtherKeys[index] = c;
+            mOtherTransitions[index] = transition;
+            mOtherCount++;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DfaState)) return false;
+            DfaState other = (DfaState)o;
+            return mContext == other.mContext && Arrays.equals(mPcs, other.mPcs);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    private final RegexProgram mProgram;
+    private final HashMap<DfaState, DfaState> mStates = new HashMap<>();
+    private DfaState mStartState;
+    private boolean mCacheFull;
+
+    // Scratch space used while computing a step
+    private final int[] mVisited;
+    private int mVisitGeneration;
+    private final int[] mQueued;
+    private int mQueueGeneration;
+    private final int[] mStack;
+    private final int[] mRun;
+    private int mRunCount;
+    private int[] mMatches;
+    private int mMatchCount;
+    private int[] mOutPcs;
+    private int mOutCount;
+    private int[] mSparePcs;
+
+    public RegexSetIndex(RegexProgram program) {
+        mProgram = program;
+        int size = program.size();
+        mVisited = new int[size];
+        mQueued = new int[size + 1];
+        mStack = new int[size * 2 + program.getStarts().length];
+        mRun = new int[size];
+        mMatches = new int[4];
+        mOutPcs = new int[size];
+        mSparePcs = new int[size];
+        resetCache();
+    }
+
+    private void resetCache() {
+        mStates.clear();
+        mCacheFull = false;
+        mStartState = new DfaState(new int[0], CONTEXT_START);
+        mStates.put(mStartState, mStartState);
+    }
+
+    private DfaState intern(int context) {
+        DfaState state = new DfaState(Arrays.copyOf(mOutPcs, mOutCount), context);
+        DfaState existing = mStates.get(state);
+        if (existing != null) {
+            return existing;
+        }
+        if (mStates.size() >= MAX_DFA_STATES) {
+            if (!mCacheFull) {
+                Xlog.v("Regex DFA cache is full, falling back to NFA simulation");
+                mCacheFull = true;
+            }
+            return null;
+        }
+        mStates.put(state, state);
+        return state;
+    }
+
+    private int nextContext(int context, int c) {
+        if (!mProgram.usesWordBoundary()) {
+            return CONTEXT_NOT_WORD;
+        } else if (RegexCharClass.isBoundaryTransparent(c)) {
+            return context == CONTEXT_START ? CONTEXT_NOT_WORD : context;
+        } else {
+            return RegexCharClass.isWord(c) ? CONTEXT_WORD : CONTEXT_NOT_WORD;
+        }
+    }
+
+    private static boolean isWordBoundary(int context, int next) {
+        if (next >= 0 && RegexCharClass.isBoundaryTransparent(next)) {
+            return false;
+        }
+        boolean nextIsWord = next >= 0 && RegexCharClass.isWord(next);
+        return nextIsWord != (context == CONTEXT_WORD);
+    }
+
+    private static boolean checkAssertion(int kind, int context, int next, boolean atLineEnd) {
+        switch (kind) {
+        case RegexNode.ASSERT_BEGIN_TEXT:
+            return context == CONTEXT_START;
+        case RegexNode.ASSERT_END_TEXT:
+            return next < 0;
+        case RegexNode.ASSERT_END_LINE:
+            return next < 0 || atLineEnd;
+        case RegexNode.ASSERT_WORD_BOUNDARY:
+            return isWordBoundary(context, next);
+        case RegexNode.ASSERT_NOT_WORD_BOUNDARY:
+            return !isWordBoundary(context, next);
+        default:
+            throw new AssertionError("Invalid assertion: " + kind);
+        }
+    }
+
+    // Follows all non-consuming instructions reachable from pc,
+    // recording consuming instructions in mRun and matches in mMatches
+    private void addThread(int pc, int context, int next, boolean atLineEnd) {
+        RegexProgram program = mProgram;
+        int[] stack = mStack;
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0) {
+            pc = stack[--top];
+            if (mVisited[pc] == mVisitGeneration) {
+                continue;
+            }
+            mVisited[pc] = mVisitGeneration;
+
+            switch (program.getOp(pc)) {
+            case RegexProgram.OP_SPLIT:
+                stack[top++] = program.getArg2(pc);
+                stack[top++] = program.getArg1(pc);
+                break;
+            case RegexProgram.OP_JUMP:
+                stack[top++] = program.getArg1(pc);
+                break;
+            case RegexProgram.OP_ASSERT:
+                if (checkAssertion(program.getArg1(pc), context, next, atLineEnd)) {
+                    stack[top++] = pc + 1;
+                }
+                break;
+            case RegexProgram.OP_MATCH:
+                if (mMatchCount == mMatches.length) {
+                    mMatches = Arrays.copyOf(mMatches, mMatchCount * 2);
+                }
+                mMatches[mMatchCount++] = program.getArg1(pc);
+                break;
+            default:
+                mRun[mRunCount++] = pc;
+                break;
+            }
+        }
+    }
+
+    private boolean accepts(int pc, int c, int foldedC) {
+        RegexProgram program = mProgram;
+        switch (program.getOp(pc)) {
+        case RegexProgram.OP_CHAR:
+            return program.getArg1(pc) == c;
+        case RegexProgram.OP_CHAR_FOLD:
+            return program.getArg1(pc) == foldedC;
+        case RegexProgram.OP_CLASS:
+            return program.getCharClass(program.getArg1(pc)).matches(c);
+        default:
+            throw new AssertionError("Invalid consuming op: " + program.getOp(pc));
+        }
+    }
+
+    // Advances the threads in pcs over the next character c (or the
+    // end of the input if c is negative). The threads that survive
+    // are written to mOutPcs, and the patterns that matched before
+    // the character are written to mMatches.
+    private void step(int[] pcs, int pcCount, int context, int c, boolean atLineEnd) {
+        if (++mVisitGeneration == 0) {
+            Arrays.fill(mVisited, 0);
+            mVisitGeneration = 1;
+        }
+        mRunCount = 0;
+        mMatchCount = 0;
+        for (int i = 0; i < pcCount; ++i) {
+            addThread(pcs[i], context, c, atLineEnd);
+        }
+
+        // Since this is a search rather than a full match, a new
+        // thread for every pattern starts at every position
+        for (int start : mProgram.getStarts()) {
+            addThread(start, context, c, atLineEnd);
+        }
+
+        mOutCount = 0;
+        if (c < 0) {
+            return;
+        }
+        if (++mQueueGeneration == 0) {
+            Arrays.fill(mQueued, 0);
+            mQueueGeneration = 1;
+        }
+        int foldedC = StringUtils.foldCase(c);
+        for (int i = 0; i < mRunCount; ++i) {
+            int pc = mRun[i];
+            if (accepts(pc, c, foldedC) && mQueued[pc + 1] != mQueueGeneration) {
+                mQueued[pc + 1] = mQueueGeneration;
+                mOutPcs[mOutCount++] = pc + 1;
+            }
+        }
+        Arrays.sort(mOutPcs, 0, mOutCount);
+    }
+
+    private int[] copyMatches() {
+        return mMatchCount == 0 ? NO_MATCHES : Arrays.copyOf(mMatches, mMatchCount);
+    }
+
+    private Transition computeTransition(DfaState state, int c) {
+        if (mCacheFull) {
+            return null;
+        }
+        step(state.mPcs, state.mPcs.length, state.mContext, c, false);
+        int[] matches = copyMatches();
+        DfaState next = intern(nextContext(state.mContext, c));
+        if (next == null) {
+            return null;
+        }
+        Transition transition = new Transition(next, matches);
+        state.putTransition(c, transition);
+        return transition;
+    }
+
+    private static void reportMatches(int[] matches, int count, MatchState state) {
+        for (int i = 0; i < count; ++i) {
+            state.addPatternMatch(matches[i]);
+        }
+    }
+
+    // Whether $ matches before the character at index i, i.e. whether
+    // the rest of the input is a single line terminator (or \r\n)
+    private static boolean isBeforeFinalLineTerminator(String text, int i) {
+        int length = text.length();
+        if (i == length - 1) {
+            char c = text.charAt(i);
+            return RegexCharClass.isLineTerminator(c) && !(c == '\n' && i > 0 && text.charAt(i - 1) == '\r');
+        } else if (i == length - 2) {
+            return text.charAt(i) == '\r' && text.charAt(i + 1) == '\n';
+        } else {
+            return false;
+        }
+    }
+
+    // Reports every pattern that matches the text. This always runs to
+    // the end: each step is bounded by the size of the program, so the
+    // time taken is linear in the length of the input.
+    public void search(String text, MatchState state) {
+        if (mCacheFull) {
+            resetCache();
+        }
+
+        // Exactly one of dfaState and nfaPcs is in use at any time;
+        // we only switch to the NFA if the DFA cache fills up
+        DfaState dfaState = mStartState;
+        int[] nfaPcs = null;
+        int nfaCount = 0;
+        int context = CONTEXT_START;
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int c = text.codePointAt(i);
+            boolean atLineEnd = i >= length - 2 && isBeforeFinalLineTerminator(text, i);
+            i += Character.charCount(c);
+
+            // Transitions where $ matches before the character are
+            // rare (only at the end of the input), so don't cache them
+            if (dfaState != null && !atLineEnd) {
+                Transition transition = dfaState.getTransition(c);
+                if (transition == null) {
+                    transition = computeTransition(dfaState, c);
+                }
+                if (transition != null) {
+                    reportMatches(transition.mMatches, transition.mMatches.length, state);
+                    dfaState = transition.mNext;
+                    continue;
+                }
+            }
+
+            if (dfaState != null) {
+                nfaPcs = dfaState.mPcs;
+                nfaCount = nfaPcs.length;
+                context = dfaState.mContext;
+                dfaState = null;
+            }
+            step(nfaPcs, nfaCount, context, c, atLineEnd);
+            reportMatches(mMatches, mMatchCount, state);
+            context = nextContext(context, c);
+            dfaState = mCacheFull ? null : intern(context);
+            if (dfaState == null) {
+                // Swap the output buffer so the next step
+                // does not overwrite its own input
+                nfaPcs = mOutPcs;
+                nfaCount = mOutCount;
+                mOutPcs = mSparePcs;
+                mSparePcs = nfaPcs;
+            }
+        }
+
+        if (dfaState != null) {
+            if (dfaState.mEndMatches == null) {
+                step(dfaState.mPcs, dfaState.mPcs.length, dfaState.mContext, -1, true);
+                dfaState.mEndMatches = copyMatches();
+            }
+            reportMatches(dfaState.mEndMatches, dfaState.mEndMatches.length, state);
+        } else {
+            step(nfaPcs, nfaCount, context, -1, true);
+            reportMatches(mMatches, mMatchCount, state);
+        }
+    }
+}
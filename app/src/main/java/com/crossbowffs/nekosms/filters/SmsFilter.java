@@ -4,47 +4,77 @@ import com.crossbowffs.nekosms.data.*;
 import com.crossbowffs.nekosms.utils.Xlog;
 
 public class SmsFilter {
+    // Called on the matching thread when a pattern is disabled
+    // because it took too long to match a message
+    public interface OnPatternDisabledListener {
+        void onPatternDisabled(String pattern);
+    }
+
     private final SmsFilterAction mAction;
     private final SmsFilterPattern mSenderPattern;
     private final SmsFilterPattern mBodyPattern;
+    private final SmsFilterPattern[] mPatterns;
 
     public SmsFilter(SmsFilterData data) {
+        this(data, null);
+    }
+
+    public SmsFilter(SmsFilterData data, OnPatternDisabledListener disabledListener) {
         mAction = data.getAction();
-        mSenderPattern = createPattern(data.getSenderPattern());
-        mBodyPattern = createPattern(data.getBodyPattern());
+        mSenderPattern = createPattern(data.getSenderPattern(), mAction, disabledListener);
+        mBodyPattern = createPattern(data.getBodyPattern(), mAction, disabledListener);
+        if (mSenderPattern != null && mBodyPattern != null) {
+            mPatterns = new SmsFilterPattern[] {mSenderPattern, mBodyPattern};
+        } else if (mSenderPattern != null) {
+            mPatterns = new SmsFilterPattern[] {mSenderPattern};
+        } else if (mBodyPattern != null) {
+            mPatterns = new SmsFilterPattern[] {mBodyPattern};
+        } else {
+            mPatterns = new SmsFilterPattern[0];
+        }
     }
 
     public SmsFilterAction getAction() {
         return mAction;
     }
 
+    /* package */ SmsFilterPattern[] getPatterns() {
+        return mPatterns;
+    }
+
+    public void printToLog() {
+        Xlog.v("Action: %s", getAction().name());
+        for (SmsFilterPattern pattern : mPatterns) {
+            pattern.printToLog();
+        }
+    }
+
     public boolean match(String sender, String body) {
         if (mSenderPattern == null && mBodyPattern == null) {
             Xlog.w("No sender or body pattern, ignoring");
             return false;
         }
-        Xlog.v("Action: %s", getAction().name());
         boolean matches = true;
         if (mSenderPattern != null) {
-            mSenderPattern.printToLog();
             matches = mSenderPattern.match(sender, body);
         }
         if (mBodyPattern != null) {
-            mBodyPattern.printToLog();
             matches = matches && mBodyPattern.match(sender, body);
         }
-        Xlog.v("Matches: %s", matches);
         return matches;
     }
 
-    private static SmsFilterPattern createPattern(SmsFilterPatternData data) {
+    private static SmsFilterPattern createPattern(SmsFilterPatternData data, SmsFilterAction action, OnPatternDisabledListener disabledListener) {
         if (!data.hasData()) {
             return null;
         }
         switch (data.getMode()) {
         case REGEX:
+            // If the pattern can't be matched in time, err on the
+            // side of delivering the message
+            return new RegexFilterPattern(data, action == SmsFilterAction.ALLOW, disabledListener);
         case WILDCARD:
-            return new RegexFilterPattern(data);
+            return new WildcardFilterPattern(data);
         case CONTAINS:
         case PREFIX:
         case SUFFIX:
@@ -4,7 +4,9 @@ import android.content.*;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
+import android.util.Log;
 import com.crossbowffs.nekosms.BuildConfig;
+import com.crossbowffs.nekosms.consts.BroadcastConsts;
 import com.crossbowffs.nekosms.data.SmsFilterAction;
 import com.crossbowffs.nekosms.data.SmsFilterData;
 import com.crossbowffs.nekosms.loader.FilterRuleLoader;
@@ -13,47 +15,93 @@ import com.crossbowffs.nekosms.utils.Xlog;
 import com.crossbowffs.nekosms.widget.CursorWrapper;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SmsFilterLoader {
     private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
 
+    // Number of messages between each reordering of the filters
+    // based on how often they have matched
+    private static final int REORDER_INTERVAL = 32;
+
+    // Maximum number of changed filters to reload one by one; beyond
+    // this, it's faster to reload all of them in a single query
+    private static final int MAX_INCREMENTAL_UPDATES = 64;
+
     private final Context mContext;
     private final ContentObserver mContentObserver;
     private final BroadcastReceiver mBroadcastReceiver;
-    private List<SmsFilter> mCachedFilters;
+    private final ExecutorService mExecutor;
+    private final SmsFilter.OnPatternDisabledListener mPatternDisabledListener = pattern -> broadcastPatternDisabled(pattern);
+    private final Object mLoadLock = new Object();
+    private final AtomicInteger mCacheGeneration = new AtomicInteger();
+    private final AtomicInteger mMessageCount = new AtomicInteger();
+
+    // Changes waiting to be applied on the background thread,
+    // guarded by mPendingFilterIds itself
+    private final HashSet<Long> mPendingFilterIds = new HashSet<>();
+    private boolean mPendingFullReload;
+    private boolean mUpdateScheduled;
+
+    // Compiled filters by ID in database order, so that changing one
+    // rule only requires that rule to be reloaded. Guarded by
+    // mLoadLock, and only valid for the cache generation it was
+    // loaded in.
+    private LinkedHashMap<Long, SmsFilter> mFiltersById;
+    private int mFiltersGeneration;
+
+    // On devices with multiple SIMs, each SIM has its own SMS handler
+    // thread which may call shouldBlockMessage() concurrently, while
+    // the filters are rebuilt on yet another thread. The compiled
+    // filters are immutable (apart from per-thread scratch state), so
+    // publishing them through a volatile field is enough for them to
+    // be used without locking.
+    private volatile CompiledFilterSet mCachedFilters;
 
     public SmsFilterLoader(Context context) {
         mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor();
         mContentObserver = registerContentObserver();
         mBroadcastReceiver = registerBroadcastReceiver();
+
+        // Load the filters ahead of time so that the first
+        // message does not have to wait for them
+        scheduleUpdate(-1);
     }
 
     public void close() {
         unregisterContentObserver(mContentObserver);
         unregisterBroadcastReceiver(mBroadcastReceiver);
+        mExecutor.shutdown();
         invalidateCache();
     }
 
     public boolean shouldBlockMessage(String sender, String body) {
-        List<SmsFilter> filters = getFilters();
+        CompiledFilterSet filters = getFilters();
         if (filters == null) {
             Xlog.i("Allowing message (filters failed to load)");
             return false;
         }
 
-        // Filters are already sorted whitelist first,
-        // so we can just return on the first match.
-        for (SmsFilter filter : filters) {
-            if (filter.match(sender, body)) {
-                switch (filter.getAction()) {
-                case ALLOW:
-                    Xlog.i("Allowing message (matched whitelist)");
-                    return false;
-                case BLOCK:
-                    Xlog.i("Blocking message (matched blacklist)");
-                    return true;
-                }
+        // Filters are already sorted whitelist first, so
+        // the first match determines the verdict.
+        SmsFilter filter = filters.match(sender, body);
+        scheduleReorder(filters);
+        if (filter != null) {
+            if (Xlog.isLoggable(Log.VERBOSE)) {
+                filter.printToLog();
+            }
+            switch (filter.getAction()) {
+            case ALLOW:
+                Xlog.i("Allowing message (matched whitelist)");
+                return false;
+            case BLOCK:
+                Xlog.i("Blocking message (matched blacklist)");
+                return true;
             }
         }
 
@@ -61,20 +109,161 @@ public class SmsFilterLoader {
         return false;
     }
 
-    private List<SmsFilter> getFilters() {
-        List<SmsFilter> filters = mCachedFilters;
-        if (filters == null) {
-            Xlog.i("Cached SMS filters dirty, loading from database");
-            filters = mCachedFilters = loadFilters();
+    // Reordering is done on a background thread so it never delays
+    // the message being dispatched; until it completes, messages
+    // are matched using the previous order.
+    private void scheduleReorder(CompiledFilterSet filters) {
+        if (mMessageCount.incrementAndGet() % REORDER_INTERVAL == 0) {
+            mExecutor.execute(() -> filters.reorder());
+        }
+    }
+
+    // When the filters change, they are recompiled on a background
+    // thread while messages continue to be matched against the old
+    // ones; the new filters are swapped in once they are ready.
+    // Changes that arrive before the background thread gets to them
+    // are applied together. A negative ID means that the whole table
+    // changed and all filters must be reloaded.
+    private void scheduleUpdate(long filterId) {
+        synchronized (mPendingFilterIds) {
+            if (filterId < 0) {
+                mPendingFullReload = true;
+            } else {
+                mPendingFilterIds.add(filterId);
+            }
+            if (!mUpdateScheduled) {
+                mUpdateScheduled = true;
+                mExecutor.execute(() -> applyPendingUpdates());
+            }
+        }
+    }
+
+    private void applyPendingUpdates() {
+        boolean fullReload;
+        Long[] filterIds;
+        synchronized (mPendingFilterIds) {
+            fullReload = mPendingFullReload || mPendingFilterIds.size() > MAX_INCREMENTAL_UPDATES;
+            filterIds = mPendingFilterIds.toArray(new Long[mPendingFilterIds.size()]);
+            mPendingFilterIds.clear();
+            mPendingFullReload = false;
+            mUpdateScheduled = false;
+        }
+
+        synchronized (mLoadLock) {
+            int generation = mCacheGeneration.get();
+            CompiledFilterSet filters;
+            try {
+                if (fullReload || mFiltersById == null || mFiltersGeneration != generation) {
+                    Xlog.i("Reloading all SMS filters in the background");
+                    filters = reloadFilters(generation);
+                } else {
+                    Xlog.i("Updating %d SMS filters in the background", filterIds.length);
+                    filters = updateFilters(filterIds);
+                }
+            } catch (Exception e) {
+                // Keep using the last good filters, but make sure
+                // the next change reloads everything
+                Xlog.e("Failed to update SMS filters", e);
+                mFiltersById = null;
+                return;
+            }
+
+            // If the cache was invalidated while we were loading,
+            // the filters may already be out of date
+            if (generation == mCacheGeneration.get()) {
+                mCachedFilters = filters;
+            }
+        }
+    }
+
+    private CompiledFilterSet getFilters() {
+        CompiledFilterSet filters = mCachedFilters;
+        if (filters != null) {
+            return filters;
+        }
+
+        // We only get here if no filters have been loaded yet (or
+        // they were thrown away because the app was uninstalled).
+        // In that case there is nothing to match against, so load
+        // them now; only one thread needs to, the others can wait.
+        synchronized (mLoadLock) {
+            filters = mCachedFilters;
+            if (filters == null) {
+                Xlog.i("SMS filters not loaded, loading from database");
+                int generation = mCacheGeneration.get();
+                filters = reloadFilters(generation);
+                if (generation == mCacheGeneration.get()) {
+                    mCachedFilters = filters;
+                }
+            }
         }
         return filters;
     }
 
     private void invalidateCache() {
+        mCacheGeneration.incrementAndGet();
         mCachedFilters = null;
     }
 
-    private List<SmsFilter> loadFilters() {
+    // Must be called with mLoadLock held
+    private CompiledFilterSet reloadFilters(int generation) {
+        mFiltersById = loadFilters();
+        mFiltersGeneration = generation;
+        if (mFiltersById == null) {
+            return null;
+        }
+        return compileFilters(null);
+    }
+
+    // Reloads only the given filters, reusing the already compiled
+    // versions of all other filters, along with the indexes that none
+    // of the changed filters are in. Must be called with mLoadLock held.
+    private CompiledFilterSet updateFilters(Long[] filterIds) {
+        for (long filterId : filterIds) {
+            SmsFilterData data = FilterRuleLoader.get().query(mContext, filterId);
+            if (data == null) {
+                mFiltersById.remove(filterId);
+                continue;
+            }
+
+            try {
+                mFiltersById.put(filterId, new SmsFilter(data, mPatternDisabledListener));
+            } catch (Exception e) {
+                Xlog.e("Failed to load SMS filter", e);
+                mFiltersById.remove(filterId);
+            }
+        }
+        return compileFilters(mCachedFilters);
+    }
+
+    // Must be called with mLoadLock held
+    private CompiledFilterSet compileFilters(CompiledFilterSet previous) {
+        // It's better to just over-reserve since we expect most
+        // rules to go into the blacklist, but all rules will
+        // be merged into the whitelist list in the end (with
+        // whitelist rules coming first).
+        int count = mFiltersById.size();
+        ArrayList<SmsFilter> whitelist = new ArrayList<>(count);
+        ArrayList<SmsFilter> blacklist = new ArrayList<>(count);
+        for (SmsFilter filter : mFiltersById.values()) {
+            if (filter.getAction() == SmsFilterAction.BLOCK) {
+                blacklist.add(filter);
+            } else if (filter.getAction() == SmsFilterAction.ALLOW) {
+                whitelist.add(filter);
+            }
+        }
+
+        Xlog.i("Loaded %d blacklist filters", blacklist.size());
+        Xlog.i("Loaded %d whitelist filters", whitelist.size());
+        whitelist.addAll(blacklist);
+        CompiledFilterSet filters = new CompiledFilterSet(whitelist, previous);
+        if (previous != null) {
+            filters.copyHitCounts(previous);
+        }
+        return filters;
+    }
+
+    private LinkedHashMap<Long, SmsFilter> loadFilters() {
         try (CursorWrapper<SmsFilterData> filterCursor = FilterRuleLoader.get().queryAll(mContext)) {
             if (filterCursor == null) {
                 // This might occur if the app has been uninstalled (removing the DB),
@@ -87,47 +276,56 @@ public class SmsFilterLoader {
             int count = filterCursor.getCount();
             Xlog.i("filterCursor.getCount() = %d", count);
 
-            // It's better to just over-reserve since we expect most
-            // rules to go into the blacklist, but all rules will
-            // be merged into the whitelist list in the end (with
-            // whitelist rules coming first).
-            ArrayList<SmsFilter> whitelist = new ArrayList<>(count);
-            ArrayList<SmsFilter> blacklist = new ArrayList<>(count);
-
+            LinkedHashMap<Long, SmsFilter> filters = new LinkedHashMap<>(count);
             SmsFilterData data = new SmsFilterData();
             while (filterCursor.moveToNext()) {
                 SmsFilter filter;
                 try {
                     data = filterCursor.get(data);
-                    filter = new SmsFilter(data);
+                    filter = new SmsFilter(data, mPatternDisabledListener);
                 } catch (Exception e) {
                     Xlog.e("Failed to load SMS filter", e);
                     continue;
                 }
-
-                if (data.getAction() == SmsFilterAction.BLOCK) {
-                    blacklist.add(filter);
-                } else if (data.getAction() == SmsFilterAction.ALLOW) {
-                    whitelist.add(filter);
-                }
+                filters.put(data.getId(), filter);
             }
-
-            Xlog.i("Loaded %d blacklist filters", blacklist.size());
-            Xlog.i("Loaded %d whitelist filters", whitelist.size());
-            whitelist.addAll(blacklist);
-            whitelist.trimToSize();
-            return whitelist;
+            return filters;
         }
     }
 
+    // Lets the app tell the user that one of their rules is being
+    // ignored, rather than letting messages through silently
+    private void broadcastPatternDisabled(String pattern) {
+        Intent intent = new Intent(BroadcastConsts.ACTION_PATTERN_DISABLED);
+        intent.setComponent(new ComponentName(NEKOSMS_PACKAGE, BroadcastConsts.RECEIVER_NAME));
+        intent.putExtra(BroadcastConsts.EXTRA_PATTERN, pattern);
+        mContext.sendBroadcast(intent);
+    }
+
     private ContentObserver registerContentObserver() {
         Xlog.i("Registering SMS filter content observer");
 
         ContentObserver contentObserver = new ContentObserver(new Handler()) {
             @Override
-            public void onChange(boolean selfChange) {
-                Xlog.i("SMS filter database updated, marking cache as dirty");
-                invalidateCache();
+            public void onChange(boolean selfChange, Uri uri) {
+                // Changes to a single rule are notified with the URI of
+                // that rule, anything else (e.g. deleting all rules)
+                // with the URI of the whole table
+                long filterId = -1;
+                if (uri != null && !uri.equals(DatabaseContract.FilterRules.CONTENT_URI)) {
+                    try {
+                        filterId = ContentUris.parseId(uri);
+                    } catch (NumberFormatException e) {
+                        filterId = -1;
+                    }
+                }
+
+                if (filterId < 0) {
+                    Xlog.i("SMS filter database updated, reloading filters");
+                } else {
+                    Xlog.i("SMS filter %d updated, reloading it", filterId);
+                }
+                scheduleUpdate(filterId);
             }
         };
 
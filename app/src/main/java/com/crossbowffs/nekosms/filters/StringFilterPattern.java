@@ -18,6 +18,10 @@ import java.text.Normalizer;
         mNormalizedPattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
     }
 
+    public String getNormalizedPattern() {
+        return mNormalizedPattern;
+    }
+
     @Override
     public boolean match(String sender, String body) {
         String testString;
@@ -0,0 +1,49 @@
+package com.crossbowffs.nekosms.filters;
+
+// Matches suffix patterns by walking down a trie of the reversed
+// patterns, starting from the end of the input and moving backwards.
+// Like PrefixIndex, this costs at most one step per character no
+// matter how many patterns there are.
+/* package */ final class SuffixIndex {
+    public static class Builder {
+        private final CharTrie.Builder mTrie;
+
+        public Builder(boolean foldCase) {
+            mTrie = new CharTrie.Builder(foldCase, 1);
+        }
+
+        public boolean isEmpty() {
+            return mTrie.isEmpty();
+        }
+
+        public Builder add(String pattern, int patternId) {
+            mTrie.add(pattern, true, patternId);
+            return this;
+        }
+
+        public SuffixIndex build() {
+            return new SuffixIndex(mTrie.build());
+        }
+    }
+
+    private final CharTrie mTrie;
+
+    private SuffixIndex(CharTrie trie) {
+        mTrie = trie;
+    }
+
+    public void search(FieldText text, MatchState state) {
+        CharTrie trie = mTrie;
+        char[] chars = text.getChars(trie.isFoldCase());
+        int node = 0;
+        for (int i = text.length() - 1; i >= 0; --i) {
+            node = trie.step(node, chars[i]);
+            if (node < 0) {
+                return;
+            }
+            for (int j = trie.getOutputStart(node); j < trie.getOutputEnd(node); ++j) {
+                state.addPatternMatch(trie.getOutput(j));
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.crossbowffs.nekosms.filters;
+
+// Thrown when a pattern uses syntax that cannot be compiled into
+// a RegexProgram (e.g. backreferences or lookaround). Such patterns
+// are still valid, they just need to go through java.util.regex.
+/* package */ class UnsupportedRegexException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedRegexException(String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,130 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.utils.StringUtils;
+
+import java.text.Normalizer;
+
+/* package */ class WildcardFilterPattern extends SmsFilterPattern {
+    private static final int ANY_STRING = -1;
+    private static final int ANY_CHAR = -2;
+
+    // Code points of the pattern (folded if case insensitive),
+    // with * and ? replaced by ANY_STRING and ANY_CHAR
+    private final int[] mGlob;
+
+    public WildcardFilterPattern(SmsFilterPatternData data) {
+        super(data);
+
+        String pattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
+        int[] glob = new int[pattern.codePointCount(0, pattern.length())];
+        for (int i = 0, j = 0; i < pattern.length(); ++j) {
+            int c = pattern.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == '*') {
+                glob[j] = ANY_STRING;
+            } else if (c == '?') {
+                glob[j] = ANY_CHAR;
+            } else {
+                glob[j] = isCaseSensitive() ? c : StringUtils.foldCase(c);
+            }
+        }
+        mGlob = glob;
+    }
+
+    // Builds the equivalent of ^glob$ for the regex set index
+    public RegexNode toRegexNode() {
+        boolean foldCase = !isCaseSensitive();
+        RegexNode[] nodes = new RegexNode[mGlob.length + 2];
+        nodes[0] = RegexNode.assertion(RegexNode.ASSERT_BEGIN_TEXT);
+        for (int i = 0; i < mGlob.length; ++i) {
+            int c = mGlob[i];
+            if (c == ANY_STRING) {
+                nodes[i + 1] = RegexNode.repeat(RegexNode.charClass(RegexCharClass.forDot(false)), 0, RegexNode.UNBOUNDED);
+            } else if (c == ANY_CHAR) {
+                nodes[i + 1] = RegexNode.charClass(RegexCharClass.forDot(false));
+            } else {
+                nodes[i + 1] = RegexNode.character(c, foldCase);
+            }
+        }
+        nodes[mGlob.length + 1] = RegexNode.assertion(RegexNode.ASSERT_END_LINE);
+        return RegexNode.concat(nodes);
+    }
+
+    @Override
+    public boolean match(String sender, String body) {
+        String testString;
+        switch (getField()) {
+        case SENDER:
+            testString = sender;
+            break;
+        case BODY:
+            testString = body;
+            break;
+        default:
+            throw new AssertionError("Invalid field: " + getField());
+        }
+
+        // Like the regex $, allow a single line terminator (or \r\n)
+        // after the end of the match
+        int length = testString.length();
+        if (matchGlob(testString, length)) {
+            return true;
+        } else if (testString.endsWith("\r\n")) {
+            return matchGlob(testString, length - 2);
+        } else if (length > 0 && RegexCharClass.isLineTerminator(testString.charAt(length - 1))) {
+            return matchGlob(testString, length - 1);
+        } else {
+            return false;
+        }
+    }
+
+    private boolean matchChar(int g, int c) {
+        if (g == ANY_CHAR) {
+            return !RegexCharClass.isLineTerminator(c);
+        } else if (isCaseSensitive()) {
+            return g == c;
+        } else {
+            return g == StringUtils.foldCase(c);
+        }
+    }
+
+    // Matches the glob against text[0, end). When a character does
+    // not match, we only need to retry from the most recent *, letting
+    // it absorb one more character; earlier stars never need to be
+    // revisited. This takes O(n * m) time in the worst case, without
+    // the exponential blowup of a backtracking regex. As with the dot
+    // in a regex, * and ? do not match line terminators.
+    private boolean matchGlob(String text, int end) {
+        int[] glob = mGlob;
+        int g = 0;
+        int t = 0;
+        int starG = -1;
+        int starT = -1;
+        while (t < end) {
+            int c = text.codePointAt(t);
+            if (g < glob.length && glob[g] == ANY_STRING) {
+                starG = g++;
+                starT = t;
+            } else if (g < glob.length && matchChar(glob[g], c)) {
+                g++;
+                t += Character.charCount(c);
+            } else if (starG >= 0) {
+                int starC = text.codePointAt(starT);
+                if (RegexCharClass.isLineTerminator(starC)) {
+                    return false;
+                }
+                starT += Character.charCount(starC);
+                t = starT;
+                g = starG + 1;
+            } else {
+                return false;
+            }
+        }
+
+        while (g < glob.length && glob[g] == ANY_STRING) {
+            g++;
+        }
+        return g == glob.length;
+    }
+}
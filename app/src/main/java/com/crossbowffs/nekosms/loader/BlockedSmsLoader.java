@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import com.crossbowffs.nekosms.data.SmsMessageData;
 import com.crossbowffs.nekosms.widget.AutoContentLoader;
 import com.crossbowffs.nekosms.widget.CursorWrapper;
@@ -80,8 +81,11 @@ public class BlockedSmsLoader extends AutoContentLoader<SmsMessageData> {
         return values;
     }
 
+    // The unseen message index only covers seen=0 and SQLite can't
+    // tell that a bound parameter matches it, so these have to use
+    // a literal value
     public CursorWrapper<SmsMessageData> queryUnseen(Context context) {
-        return queryAll(context, BlockedMessages.SEEN + "=?", new String[] {"0"}, BlockedMessages.TIME_SENT + " DESC");
+        return queryAll(context, BlockedMessages.SEEN + "=0", null, BlockedMessages.TIME_SENT + " DESC");
     }
 
     public SmsMessageData queryAndDelete(Context context, long messageId) {
@@ -119,9 +123,35 @@ public class BlockedSmsLoader extends AutoContentLoader<SmsMessageData> {
         return update(context, messageUri, values);
     }
 
+    public int archive(Context context, long maxAgeMs, long maxRunTimeMs) {
+        Bundle extras = new Bundle();
+        extras.putLong(BlockedMessages.EXTRA_MAX_AGE_MS, maxAgeMs);
+        extras.putLong(BlockedMessages.EXTRA_MAX_RUN_TIME_MS, maxRunTimeMs);
+        Bundle result = context.getContentResolver().call(
+            BlockedMessages.CONTENT_URI, BlockedMessages.METHOD_ARCHIVE, null, extras);
+        if (result == null) {
+            return 0;
+        }
+        return result.getInt(BlockedMessages.EXTRA_ARCHIVED_COUNT);
+    }
+
+    public int prune(Context context, long maxAgeMs, long maxCount, long maxSizeBytes, long maxRunTimeMs) {
+        Bundle extras = new Bundle();
+        extras.putLong(BlockedMessages.EXTRA_MAX_AGE_MS, maxAgeMs);
+        extras.putLong(BlockedMessages.EXTRA_MAX_COUNT, maxCount);
+        extras.putLong(BlockedMessages.EXTRA_MAX_SIZE_BYTES, maxSizeBytes);
+        extras.putLong(BlockedMessages.EXTRA_MAX_RUN_TIME_MS, maxRunTimeMs);
+        Bundle result = context.getContentResolver().call(
+            BlockedMessages.CONTENT_URI, BlockedMessages.METHOD_PRUNE, null, extras);
+        if (result == null) {
+            return 0;
+        }
+        return result.getInt(BlockedMessages.EXTRA_PRUNED_COUNT);
+    }
+
     public void markAllSeen(Context context) {
         ContentValues values = new ContentValues();
         values.put(BlockedMessages.SEEN, 1);
-        updateAll(context, values, BlockedMessages.SEEN + "=?", new String[] {"0"});
+        updateAll(context, values, BlockedMessages.SEEN + "=0", null);
     }
 }
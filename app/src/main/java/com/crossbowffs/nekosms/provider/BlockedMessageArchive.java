@@ -0,0 +1,495 @@
+package com.crossbowffs.nekosms.provider;
+
+import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Append-only storage for blocked messages that have been moved out
+// of the database. Messages are written in blocks, each compressed on
+// its own, to numbered segment files. Every segment has an index file
+// with one fixed-size entry per block (where the block is and which
+// messages it holds), so that reading only has to inflate the blocks
+// that overlap the requested time range.
+//
+// The index entry for a block is only written once the block itself
+// is on disk, so a crash can at worst leave some unreferenced bytes
+// at the end of a segment, which are never read.
+//
+// Since blocks are never rewritten, deleting a single message just adds
+// its ID to a list of deleted IDs, which are skipped when reading. The
+// list is dropped once the segments holding those messages are gone.
+/* package */ class BlockedMessageArchive {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String DELETED_IDS_FILE = "deleted.ids";
+    private static final int BLOCK_VERSION = 1;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    // offset, length, count, minTimeSent, maxTimeSent
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4 + 8 + 8;
+
+    private static class IndexEntry {
+        private int mSegment;
+        private long mOffset;
+        private int mLength;
+        private int mCount;
+        private long mMinTimeSent;
+        private long mMaxTimeSent;
+    }
+
+    private final File mDirectory;
+    private Set<Long> mDeletedIds;
+
+    public BlockedMessageArchive(File directory) {
+        mDirectory = directory;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private File getIndexFile(int segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + INDEX_SUFFIX);
+    }
+
+    // Returns the segment numbers in ascending order
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            try {
+                segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - INDEX_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Xlog.w("Ignoring unknown archive file: %s", name);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private List<IndexEntry> readIndex(int segment) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        File indexFile = getIndexFile(segment);
+        if (!indexFile.exists()) {
+            return entries;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            // A partially written entry at the end is from a block
+            // that never finished being archived, so just ignore it
+            long count = file.length() / INDEX_ENTRY_SIZE;
+            for (long i = 0; i < count; ++i) {
+                IndexEntry entry = new IndexEntry();
+                entry.mSegment = segment;
+                entry.mOffset = file.readLong();
+                entry.mLength = file.readInt();
+                entry.mCount = file.readInt();
+                entry.mMinTimeSent = file.readLong();
+                entry.mMaxTimeSent = file.readLong();
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private Set<Long> getDeletedIds() {
+        if (mDeletedIds != null) {
+            return mDeletedIds;
+        }
+        mDeletedIds = new HashSet<>();
+        File file = new File(mDirectory, DELETED_IDS_FILE);
+        if (!file.exists()) {
+            return mDeletedIds;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            long count = file.length() / 8;
+            for (long i = 0; i < count; ++i) {
+                mDeletedIds.add(in.readLong());
+            }
+        } catch (IOException e) {
+            Xlog.e("Failed to read deleted archive message IDs", e);
+        }
+        return mDeletedIds;
+    }
+
+    private void writeDeletedIds(Set<Long> deletedIds) throws IOException {
+        File file = new File(mDirectory, DELETED_IDS_FILE);
+        if (deletedIds.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            return;
+        }
+
+        // Write to a temporary file first, so a crash can't lose the
+        // IDs that were already in the list
+        File tempFile = new File(mDirectory, DELETED_IDS_FILE + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(fileOut))
+        {
+            for (long id : deletedIds) {
+                out.writeLong(id);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeBlock(List<SmsMessageData> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(BLOCK_VERSION);
+            out.writeInt(messages.size());
+            for (SmsMessageData message : messages) {
+                out.writeLong(message.getId());
+                writeString(out, message.getSender());
+                writeString(out, message.getBody());
+                out.writeLong(message.getTimeSent());
+                out.writeLong(message.getTimeReceived());
+                out.writeBoolean(message.isRead());
+                out.writeBoolean(message.isSeen());
+                out.writeInt(message.getSubId());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<SmsMessageData> decodeBlock(byte[] block) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)))) {
+            int version = in.readInt();
+            if (version != BLOCK_VERSION) {
+                throw new IOException("Unknown archive block version: " + version);
+            }
+            int count = in.readInt();
+            List<SmsMessageData> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                SmsMessageData message = new SmsMessageData();
+                message.setId(in.readLong());
+                message.setSender(readString(in));
+                message.setBody(readString(in));
+                message.setTimeSent(in.readLong());
+                message.setTimeReceived(in.readLong());
+                message.setRead(in.readBoolean());
+                message.setSeen(in.readBoolean());
+                message.setSubId(in.readInt());
+                messages.add(message);
+            }
+            return messages;
+        }
+    }
+
+    private static List<SmsMessageData> readBlock(RandomAccessFile file, IndexEntry entry) throws IOException {
+        if (entry.mOffset + entry.mLength > file.length()) {
+            throw new EOFException("Archive block is past the end of its segment");
+        }
+        byte[] block = new byte[entry.mLength];
+        file.seek(entry.mOffset);
+        file.readFully(block);
+        return decodeBlock(block);
+    }
+
+    public synchronized void append(List<SmsMessageData> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create archive directory: " + mDirectory);
+        }
+
+        List<Integer> segments = listSegments();
+        int segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        File segmentFile = getSegmentFile(segment);
+        if (segmentFile.length() >= MAX_SEGMENT_SIZE) {
+            segment++;
+            segmentFile = getSegmentFile(segment);
+        }
+
+        IndexEntry entry = new IndexEntry();
+        entry.mCount = messages.size();
+        entry.mMinTimeSent = Long.MAX_VALUE;
+        entry.mMaxTimeSent = Long.MIN_VALUE;
+        for (SmsMessageData message : messages) {
+            entry.mMinTimeSent = Math.min(entry.mMinTimeSent, message.getTimeSent());
+            entry.mMaxTimeSent = Math.max(entry.mMaxTimeSent, message.getTimeSent());
+        }
+
+        byte[] block = encodeBlock(messages);
+        entry.mOffset = segmentFile.length();
+        entry.mLength = block.length;
+        try (FileOutputStream out = new FileOutputStream(segmentFile, true)) {
+            out.write(block);
+            out.getFD().sync();
+        }
+
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+        try (DataOutputStream indexOut = new DataOutputStream(indexBytes)) {
+            indexOut.writeLong(entry.mOffset);
+            indexOut.writeInt(entry.mLength);
+            indexOut.writeInt(entry.mCount);
+            indexOut.writeLong(entry.mMinTimeSent);
+            indexOut.writeLong(entry.mMaxTimeSent);
+        }
+        try (RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(segment), "rw")) {
+            // Drop any partially written entry, otherwise every
+            // entry after it would be misaligned
+            long length = indexFile.length() - indexFile.length() % INDEX_ENTRY_SIZE;
+            indexFile.setLength(length);
+            indexFile.seek(length);
+            indexFile.write(indexBytes.toByteArray());
+            indexFile.getFD().sync();
+        }
+    }
+
+    // Returns the messages in the last block that was written. If
+    // we crashed right after writing it, these may still be in the
+    // database too.
+    public synchronized List<SmsMessageData> readLastBlock() throws IOException {
+        List<Integer> segments = listSegments();
+        for (int i = segments.size() - 1; i >= 0; --i) {
+            int segment = segments.get(i);
+            List<IndexEntry> entries = readIndex(segment);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "r")) {
+                return readBlock(file, entries.get(entries.size() - 1));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    // Returns the archived messages with minTimeSent <= time_sent < maxTimeSent,
+    // newest first. If limit is positive, only the newest limit messages are
+    // returned. Segments and blocks that can't be read are skipped.
+    public synchronized List<SmsMessageData> read(long minTimeSent, long maxTimeSent, int limit) {
+        List<IndexEntry> entries = new ArrayList<>();
+        for (int segment : listSegments()) {
+            try {
+                for (IndexEntry entry : readIndex(segment)) {
+                    if (entry.mMaxTimeSent >= minTimeSent && entry.mMinTimeSent < maxTimeSent) {
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                Xlog.e("Failed to read archive segment %d", segment, e);
+            }
+        }
+
+        // Blocks are in the order they were archived, which isn't
+        // necessarily the order the messages were sent in. Inflating the
+        // blocks with the newest messages first means we can stop once
+        // no remaining block can hold a message newer than the ones
+        // we already have.
+        Collections.sort(entries, (a, b) -> Long.compare(b.mMaxTimeSent, a.mMaxTimeSent));
+        Set<Long> deletedIds = getDeletedIds();
+        List<SmsMessageData> messages = new ArrayList<>();
+        RandomAccessFile file = null;
+        int fileSegment = -1;
+        try {
+            for (IndexEntry entry : entries) {
+                if (limit > 0 && messages.size() >= limit) {
+                    sortNewestFirst(messages);
+                    messages.subList(limit, messages.size()).clear();
+                    if (entry.mMaxTimeSent < messages.get(limit - 1).getTimeSent()) {
+                        break;
+                    }
+                }
+                try {
+                    if (entry.mSegment != fileSegment) {
+                        closeSegment(file);
+                        file = null;
+                        fileSegment = -1;
+                        file = new RandomAccessFile(getSegmentFile(entry.mSegment), "r");
+                        fileSegment = entry.mSegment;
+                    }
+                    for (SmsMessageData message : readBlock(file, entry)) {
+                        if (message.getTimeSent() >= minTimeSent && message.getTimeSent() < maxTimeSent &&
+                            !deletedIds.contains(message.getId()))
+                        {
+                            messages.add(message);
+                        }
+                    }
+                } catch (IOException e) {
+                    Xlog.e("Failed to read archive block in segment %d", entry.mSegment, e);
+                }
+            }
+        } finally {
+            closeSegment(file);
+        }
+
+        sortNewestFirst(messages);
+        if (limit > 0 && messages.size() > limit) {
+            messages.subList(limit, messages.size()).clear();
+        }
+        return messages;
+    }
+
+    private static void closeSegment(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Only read from, so nothing can be lost here
+        }
+    }
+
+    private static void sortNewestFirst(List<SmsMessageData> messages) {
+        Collections.sort(messages, (a, b) -> {
+            int cmp = Long.compare(b.getTimeSent(), a.getTimeSent());
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Long.compare(b.getId(), a.getId());
+        });
+    }
+
+    // Returns the archived message with the given ID, or null if there
+    // is none. There is no index by ID, so this reads every block; it's
+    // only meant for acting on a single message the user picked.
+    public synchronized SmsMessageData find(long id) {
+        if (getDeletedIds().contains(id)) {
+            return null;
+        }
+        for (int segment : listSegments()) {
+            try {
+                List<IndexEntry> entries = readIndex(segment);
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "r")) {
+                    for (IndexEntry entry : entries) {
+                        for (SmsMessageData message : readBlock(file, entry)) {
+                            if (message.getId() == id) {
+                                return message;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Xlog.e("Failed to read archive segment %d", segment, e);
+            }
+        }
+        return null;
+    }
+
+    // Whether the message with the given ID was deleted from the archive
+    public synchronized boolean isDeleted(long id) {
+        return getDeletedIds().contains(id);
+    }
+
+    // Returns whether the message was in the archive
+    public synchronized boolean delete(long id) throws IOException {
+        if (find(id) == null) {
+            return false;
+        }
+        Set<Long> deletedIds = new HashSet<>(getDeletedIds());
+        deletedIds.add(id);
+        writeDeletedIds(deletedIds);
+        mDeletedIds = deletedIds;
+        return true;
+    }
+
+    // Deletes every segment, then the list of deleted IDs
+    public synchronized void deleteAll() throws IOException {
+        for (int segment : listSegments()) {
+            // Index first, for the same reason as in deleteOlderThan()
+            if (!getIndexFile(segment).delete() || !getSegmentFile(segment).delete()) {
+                throw new IOException("Could not delete archive segment " + segment);
+            }
+        }
+        writeDeletedIds(Collections.<Long>emptySet());
+        mDeletedIds = null;
+    }
+
+    // Deletes the segments whose messages were all sent before
+    // minTimeSent. Returns the number of deleted messages.
+    public synchronized int deleteOlderThan(long minTimeSent) {
+        int deleted = 0;
+        for (int segment : listSegments()) {
+            int count = 0;
+            try {
+                for (IndexEntry entry : readIndex(segment)) {
+                    if (entry.mMaxTimeSent >= minTimeSent) {
+                        count = -1;
+                        break;
+                    }
+                    count += entry.mCount;
+                }
+            } catch (IOException e) {
+                Xlog.e("Failed to read archive segment %d", segment, e);
+                continue;
+            }
+            if (count < 0) {
+                continue;
+            }
+
+            // Delete the index first, so that a crash in between
+            // leaves a segment that is simply never read
+            if (!getIndexFile(segment).delete() || !getSegmentFile(segment).delete()) {
+                Xlog.e("Failed to delete archive segment %d", segment);
+                continue;
+            }
+            deleted += count;
+        }
+
+        // Deleted IDs can only refer to messages in a remaining segment
+        if (listSegments().isEmpty()) {
+            try {
+                writeDeletedIds(Collections.<Long>emptySet());
+                mDeletedIds = null;
+            } catch (IOException e) {
+                Xlog.e("Failed to delete deleted archive message IDs", e);
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,109 @@
+package com.crossbowffs.nekosms.provider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
+
+// Moves old blocked messages from the database into the archive, a
+// batch at a time. Each batch is deleted from the database only after
+// it has been written to the archive; if we crash in between, the
+// batch is deleted the next time this runs instead of being archived
+// twice (message IDs are never reused, so this is always safe).
+/* package */ class BlockedMessageArchiver {
+    private static final int ARCHIVE_BATCH_SIZE = 500;
+
+    private final SQLiteDatabase mDatabase;
+    private final ContentResolver mContentResolver;
+    private final BlockedMessageArchive mArchive;
+    private final long mDeadline;
+
+    // Stops after maxRunTimeMs; whatever is left over will
+    // be archived the next time we run
+    public BlockedMessageArchiver(SQLiteDatabase database, ContentResolver contentResolver, BlockedMessageArchive archive, long maxRunTimeMs) {
+        mDatabase = database;
+        mContentResolver = contentResolver;
+        mArchive = archive;
+        mDeadline = SystemClock.elapsedRealtime() + maxRunTimeMs;
+    }
+
+    // Returns the number of archived messages
+    public int archive(long maxAgeMs) {
+        long minTimeSent = System.currentTimeMillis() - maxAgeMs;
+        int archived = 0;
+        try {
+            deleteMessages(mArchive.readLastBlock());
+            while (SystemClock.elapsedRealtime() < mDeadline) {
+                List<SmsMessageData> messages = queryOldest(minTimeSent);
+                if (messages.isEmpty()) {
+                    break;
+                }
+                mArchive.append(messages);
+                deleteMessages(messages);
+                archived += messages.size();
+                if (messages.size() < ARCHIVE_BATCH_SIZE) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Xlog.e("Failed to archive blocked messages", e);
+        }
+        if (archived > 0) {
+            Xlog.i("Archived %d old blocked messages", archived);
+        }
+        return archived;
+    }
+
+    private List<SmsMessageData> queryOldest(long minTimeSent) {
+        List<SmsMessageData> messages = new ArrayList<>();
+        try (Cursor cursor = mDatabase.query(DatabaseHelper.BLOCKED_MESSAGES_VIEW, BlockedMessages.ALL,
+            BlockedMessages.TIME_SENT + "<" + minTimeSent, null, null, null,
+            BlockedMessages.TIME_SENT, String.valueOf(ARCHIVE_BATCH_SIZE)))
+        {
+            int idColumn = cursor.getColumnIndexOrThrow(BlockedMessages._ID);
+            int senderColumn = cursor.getColumnIndexOrThrow(BlockedMessages.SENDER);
+            int bodyColumn = cursor.getColumnIndexOrThrow(BlockedMessages.BODY);
+            int timeSentColumn = cursor.getColumnIndexOrThrow(BlockedMessages.TIME_SENT);
+            int timeReceivedColumn = cursor.getColumnIndexOrThrow(BlockedMessages.TIME_RECEIVED);
+            int readColumn = cursor.getColumnIndexOrThrow(BlockedMessages.READ);
+            int seenColumn = cursor.getColumnIndexOrThrow(BlockedMessages.SEEN);
+            int subIdColumn = cursor.getColumnIndexOrThrow(BlockedMessages.SUB_ID);
+            while (cursor.moveToNext()) {
+                SmsMessageData message = new SmsMessageData();
+                message.setId(cursor.getLong(idColumn));
+                message.setSender(cursor.getString(senderColumn));
+                message.setBody(cursor.getString(bodyColumn));
+                message.setTimeSent(cursor.getLong(timeSentColumn));
+                message.setTimeReceived(cursor.getLong(timeReceivedColumn));
+                message.setRead(cursor.getInt(readColumn) != 0);
+                message.setSeen(cursor.getInt(seenColumn) != 0);
+                message.setSubId(cursor.getInt(subIdColumn));
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private void deleteMessages(List<SmsMessageData> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (SmsMessageData message : messages) {
+            ids.add(message.getId());
+        }
+        String where = BlockedMessages._ID + " IN (" + TextUtils.join(",", ids) + ")";
+        if (mDatabase.delete(BlockedMessages.TABLE, where, null) > 0) {
+            mContentResolver.notifyChange(BlockedMessages.CONTENT_URI, null);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.crossbowffs.nekosms.provider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
+
+// Deletes the oldest blocked messages until the table fits within the
+// retention limits. Messages are deleted a batch at a time, each batch
+// in its own transaction, so that the phone process never has to wait
+// long to insert a new message while this is running. Freed pages are
+// then returned to the filesystem a few at a time, for the same reason.
+// Everything stops at the deadline; whatever is left over is deleted
+// the next time we run.
+/* package */ class BlockedMessagePruner {
+    private static final int DELETE_BATCH_SIZE = 500;
+    private static final int VACUUM_BATCH_PAGES = 256;
+
+    private final SQLiteDatabase mDatabase;
+    private final ContentResolver mContentResolver;
+    private final long mDeadline;
+
+    public BlockedMessagePruner(SQLiteDatabase database, ContentResolver contentResolver, long maxRunTimeMs) {
+        mDatabase = database;
+        mContentResolver = contentResolver;
+        mDeadline = SystemClock.elapsedRealtime() + maxRunTimeMs;
+    }
+
+    // A limit of 0 means no limit. Returns the number of deleted messages.
+    public int prune(long maxAgeMs, long maxCount, long maxSizeBytes) {
+        int deleted = 0;
+        if (maxAgeMs > 0) {
+            deleted += pruneByAge(System.currentTimeMillis() - maxAgeMs);
+        }
+        if (maxCount > 0) {
+            deleted += pruneByCount(maxCount);
+        }
+        if (maxSizeBytes > 0) {
+            deleted += pruneBySize(maxSizeBytes);
+        }
+        if (deleted > 0) {
+            Xlog.i("Pruned %d old blocked messages", deleted);
+        }
+        vacuum();
+        return deleted;
+    }
+
+    private boolean isOutOfTime() {
+        return SystemClock.elapsedRealtime() >= mDeadline;
+    }
+
+    private int pruneByAge(long minTimeSent) {
+        int deleted = 0;
+        while (!isOutOfTime()) {
+            int count = deleteOldest(DELETE_BATCH_SIZE,
+                BlockedMessages.TIME_SENT + "<" + minTimeSent);
+            deleted += count;
+            if (count < DELETE_BATCH_SIZE) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private int pruneByCount(long maxCount) {
+        int deleted = 0;
+        while (!isOutOfTime()) {
+            long excess = DatabaseUtils.queryNumEntries(mDatabase, BlockedMessages.TABLE) - maxCount;
+            if (excess <= 0) {
+                break;
+            }
+            int count = deleteOldest((int)Math.min(excess, DELETE_BATCH_SIZE), null);
+            deleted += count;
+            if (count == 0) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private int pruneBySize(long maxSizeBytes) {
+        // Free pages don't count, since they are reused before the
+        // file grows again (and are given back by vacuum() anyway)
+        int deleted = 0;
+        while (!isOutOfTime()) {
+            long pageSize = queryPragma("page_size");
+            long usedPages = queryPragma("page_count") - queryPragma("freelist_count");
+            if (usedPages * pageSize <= maxSizeBytes) {
+                break;
+            }
+            int count = deleteOldest(DELETE_BATCH_SIZE, null);
+            deleted += count;
+            if (count == 0) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private int deleteOldest(int limit, String where) {
+        String subquery =
+            "SELECT " + BlockedMessages._ID +
+            " FROM " + BlockedMessages.TABLE +
+            (where != null ? " WHERE " + where : "") +
+            " ORDER BY " + BlockedMessages.TIME_SENT +
+            " LIMIT " + limit;
+        int count = mDatabase.delete(BlockedMessages.TABLE, BlockedMessages._ID + " IN (" + subquery + ")", null);
+        if (count > 0) {
+            mContentResolver.notifyChange(BlockedMessages.CONTENT_URI, null);
+        }
+        return count;
+    }
+
+    private void vacuum() {
+        // Databases created before auto_vacuum was enabled would need a
+        // full VACUUM before incremental vacuuming works, which can take
+        // much longer than we have and locks out the phone process the
+        // whole time. Their free pages are still reused for new messages,
+        // so the file just doesn't shrink.
+        if (queryPragma("auto_vacuum") != DatabaseHelper.AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+        while (!isOutOfTime() && queryPragma("freelist_count") > 0) {
+            queryPragma("incremental_vacuum(" + VACUUM_BATCH_PAGES + ")");
+        }
+    }
+
+    private long queryPragma(String pragma) {
+        try (Cursor cursor = mDatabase.rawQuery("PRAGMA " + pragma, null)) {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+            return 0;
+        }
+    }
+}
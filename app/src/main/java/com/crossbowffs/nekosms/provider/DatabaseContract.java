@@ -15,6 +15,47 @@ public final class DatabaseContract {
         public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.crossbowffs.sms";
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.crossbowffs.sms";
 
+        // Messages where each word in the QUERY_PARAM_SEARCH parameter
+        // is a word prefix in the body or the sender. Words in scripts
+        // written without spaces may also appear anywhere in the body.
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+        public static final String QUERY_PARAM_SEARCH = "q";
+
+        // Messages that have been moved to the archive, newest first.
+        // These can't be modified, only deleted, and are still found by
+        // ID through CONTENT_URI. The supported filters are the
+        // QUERY_PARAM_MIN_TIME_SENT (inclusive) and
+        // QUERY_PARAM_MAX_TIME_SENT (exclusive) parameters, and
+        // QUERY_PARAM_LIMIT to only return the newest messages in that
+        // range. Deleting everything through CONTENT_URI also empties
+        // the archive. This is not under CONTENT_URI, so that changes
+        // to the messages in the database don't reload the archive.
+        public static final Uri ARCHIVE_URI = Uri.withAppendedPath(DatabaseContract.CONTENT_URI, TABLE + "_archive");
+        public static final String QUERY_PARAM_MIN_TIME_SENT = "min_time_sent";
+        public static final String QUERY_PARAM_MAX_TIME_SENT = "max_time_sent";
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        // Provider method that deletes the oldest messages until the
+        // table fits within the given limits (0 means no limit), and
+        // returns the number of deleted messages in EXTRA_PRUNED_COUNT.
+        // Archived messages are only subject to the age limit, and are
+        // deleted a whole archive segment at a time.
+        public static final String METHOD_PRUNE = "prune_blocked_messages";
+        public static final String EXTRA_MAX_AGE_MS = "max_age_ms";
+        public static final String EXTRA_MAX_COUNT = "max_count";
+        public static final String EXTRA_MAX_SIZE_BYTES = "max_size_bytes";
+        public static final String EXTRA_PRUNED_COUNT = "pruned_count";
+
+        // Provider method that moves messages older than EXTRA_MAX_AGE_MS
+        // to the archive, and returns the number of moved messages in
+        // EXTRA_ARCHIVED_COUNT
+        public static final String METHOD_ARCHIVE = "archive_blocked_messages";
+        public static final String EXTRA_ARCHIVED_COUNT = "archived_count";
+
+        // How long METHOD_PRUNE and METHOD_ARCHIVE may run for before
+        // leaving the rest of the work for next time
+        public static final String EXTRA_MAX_RUN_TIME_MS = "max_run_time_ms";
+
         public static final String SENDER = "sender";
         public static final String BODY = "body";
         public static final String TIME_SENT = "time_sent";
@@ -4,12 +4,19 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.provider.BaseColumns;
 import com.crossbowffs.nekosms.BuildConfig;
 import com.crossbowffs.nekosms.data.SmsFilterAction;
 import com.crossbowffs.nekosms.data.SmsFilterField;
 import com.crossbowffs.nekosms.utils.Xlog;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
 import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
 
@@ -17,11 +24,50 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
     private static final String DATABASE_NAME = "nekosms.db";
     private static final int DATABASE_VERSION = BuildConfig.DATABASE_VERSION;
 
+    // Page cache size in KiB (negative values are interpreted as KiB
+    // rather than pages by SQLite), and how much of the database file
+    // to memory-map, in bytes. These are sizing estimates, not measured
+    // values. The cache is about what current SQLite versions use by
+    // default (2000 KiB), fixed so older versions that count the default
+    // in pages don't use less. A blocked message takes a few hundred
+    // bytes with its index entries, so the map covers a database of
+    // some tens of thousands of messages, while taking little address
+    // space on 32-bit devices. Past that, reads just go through the
+    // page cache as usual.
+    private static final int CACHE_SIZE_KB = 2048;
+    private static final long MMAP_SIZE = 8 * 1024 * 1024;
+
+    // Value of PRAGMA auto_vacuum for incremental mode
+    /* package */ static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Message bodies are stored once in MESSAGE_BODIES_TABLE, no matter
+    // how many messages have them (spam campaigns tend to send the same
+    // text thousands of times), and looked up by a hash of the text.
+    // Blocked messages refer to their body by ID; BLOCKED_MESSAGES_VIEW
+    // joins the two back together, and is what the provider reads from.
+    // Bodies are deleted along with the last message that refers to them.
+    /* package */ static final String MESSAGE_BODIES_TABLE = "message_bodies";
+    /* package */ static final String MESSAGE_BODIES_HASH = "hash";
+    /* package */ static final String MESSAGE_BODIES_BODY = "body";
+    /* package */ static final String BLOCKED_MESSAGES_BODY_ID = "body_id";
+    /* package */ static final String BLOCKED_MESSAGES_VIEW = BlockedMessages.TABLE + "_view";
+
+    private static final String CREATE_MESSAGE_BODIES_TABLE =
+        "CREATE TABLE " + MESSAGE_BODIES_TABLE + "(" +
+            BaseColumns._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            MESSAGE_BODIES_HASH                 + " INTEGER NOT NULL, " +
+            MESSAGE_BODIES_BODY                 + " TEXT NOT NULL" +
+        ");";
+
+    private static final String CREATE_MESSAGE_BODIES_HASH_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + MESSAGE_BODIES_TABLE + "_hash_idx" +
+        " ON " + MESSAGE_BODIES_TABLE + "(" + MESSAGE_BODIES_HASH + ");";
+
     private static final String CREATE_BLOCKED_MESSAGES_TABLE =
         "CREATE TABLE " + BlockedMessages.TABLE + "(" +
             BlockedMessages._ID                 + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             BlockedMessages.SENDER              + " TEXT NOT NULL, " +
-            BlockedMessages.BODY                + " TEXT NOT NULL, " +
+            BLOCKED_MESSAGES_BODY_ID            + " INTEGER NOT NULL, " +
             BlockedMessages.TIME_SENT           + " INTEGER NOT NULL, " +
             BlockedMessages.TIME_RECEIVED       + " INTEGER NOT NULL, " +
             BlockedMessages.READ                + " INTEGER NOT NULL, " +
@@ -29,6 +75,139 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
             BlockedMessages.SUB_ID              + " INTEGER NOT NULL" +
         ");";
 
+    private static final String CREATE_BLOCKED_MESSAGES_VIEW =
+        "CREATE VIEW IF NOT EXISTS " + BLOCKED_MESSAGES_VIEW + " AS SELECT " +
+            "m." + BlockedMessages._ID          + " AS " + BlockedMessages._ID + ", " +
+            "m." + BlockedMessages.SENDER       + " AS " + BlockedMessages.SENDER + ", " +
+            "b." + MESSAGE_BODIES_BODY          + " AS " + BlockedMessages.BODY + ", " +
+            "m." + BlockedMessages.TIME_SENT    + " AS " + BlockedMessages.TIME_SENT + ", " +
+            "m." + BlockedMessages.TIME_RECEIVED + " AS " + BlockedMessages.TIME_RECEIVED + ", " +
+            "m." + BlockedMessages.READ         + " AS " + BlockedMessages.READ + ", " +
+            "m." + BlockedMessages.SEEN         + " AS " + BlockedMessages.SEEN + ", " +
+            "m." + BlockedMessages.SUB_ID       + " AS " + BlockedMessages.SUB_ID + ", " +
+            "m." + BLOCKED_MESSAGES_BODY_ID     + " AS " + BLOCKED_MESSAGES_BODY_ID +
+        " FROM " + BlockedMessages.TABLE + " m" +
+        " JOIN " + MESSAGE_BODIES_TABLE + " b" +
+        " ON b." + BaseColumns._ID + " = m." + BLOCKED_MESSAGES_BODY_ID + ";";
+
+    private static final String DELETE_UNUSED_MESSAGE_BODY =
+        " DELETE FROM " + MESSAGE_BODIES_TABLE +
+        " WHERE " + BaseColumns._ID + " = old." + BLOCKED_MESSAGES_BODY_ID +
+        " AND NOT EXISTS (SELECT 1 FROM " + BlockedMessages.TABLE +
+        " WHERE " + BLOCKED_MESSAGES_BODY_ID + " = old." + BLOCKED_MESSAGES_BODY_ID + ");";
+
+    private static final String CREATE_BLOCKED_MESSAGES_DELETE_BODY_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BlockedMessages.TABLE + "_body_ad" +
+        " AFTER DELETE ON " + BlockedMessages.TABLE + " BEGIN" +
+        DELETE_UNUSED_MESSAGE_BODY +
+        " END;";
+
+    private static final String CREATE_BLOCKED_MESSAGES_UPDATE_BODY_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BlockedMessages.TABLE + "_body_au" +
+        " AFTER UPDATE OF " + BLOCKED_MESSAGES_BODY_ID + " ON " + BlockedMessages.TABLE + " BEGIN" +
+        DELETE_UNUSED_MESSAGE_BODY +
+        " END;";
+
+    // For the message list (newest first) and retention by age
+    private static final String CREATE_BLOCKED_MESSAGES_TIME_SENT_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + BlockedMessages.TABLE + "_time_sent_idx" +
+        " ON " + BlockedMessages.TABLE + "(" + BlockedMessages.TIME_SENT + ");";
+
+    // For posting notifications and marking messages as seen. Almost
+    // all messages are seen, so only the unseen ones are indexed (and
+    // sorted, so the newest ones can be read without sorting). Partial
+    // indexes need SQLite 3.8.0 (Android 5.0); on older versions the
+    // whole table is indexed instead.
+    private static final String CREATE_BLOCKED_MESSAGES_UNSEEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + BlockedMessages.TABLE + "_unseen_idx" +
+        " ON " + BlockedMessages.TABLE + "(" + BlockedMessages.TIME_SENT + ")" +
+        " WHERE " + BlockedMessages.SEEN + " = 0;";
+    private static final String CREATE_BLOCKED_MESSAGES_UNSEEN_INDEX_COMPAT =
+        "CREATE INDEX IF NOT EXISTS " + BlockedMessages.TABLE + "_unseen_idx" +
+        " ON " + BlockedMessages.TABLE + "(" + BlockedMessages.SEEN + ", " + BlockedMessages.TIME_SENT + ");";
+
+    // For looking up messages from a sender
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + BlockedMessages.TABLE + "_sender_idx" +
+        " ON " + BlockedMessages.TABLE + "(" + BlockedMessages.SENDER + ", " + BlockedMessages.TIME_SENT + ");";
+
+    // For finding out whether a body is still used by other messages
+    private static final String CREATE_BLOCKED_MESSAGES_BODY_ID_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + BlockedMessages.TABLE + "_body_id_idx" +
+        " ON " + BlockedMessages.TABLE + "(" + BLOCKED_MESSAGES_BODY_ID + ");";
+
+    // Full-text index of message bodies. The text is not stored twice;
+    // the index reads it from the bodies table, and is kept up to date
+    // by the triggers below (bodies are never modified, only inserted
+    // and deleted). Since bodies are deduplicated, so is the index.
+    // The unicode61 tokenizer may not be built in (it definitely isn't
+    // before Android 5.0), in which case only ASCII text is case folded.
+    /* package */ static final String MESSAGE_BODIES_FTS_TABLE = MESSAGE_BODIES_TABLE + "_fts";
+
+    // Index of v14, which was on the messages table
+    private static final String LEGACY_BLOCKED_MESSAGES_FTS_TABLE = BlockedMessages.TABLE + "_fts";
+
+    private static final String CREATE_MESSAGE_BODIES_FTS_TABLE =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + MESSAGE_BODIES_FTS_TABLE + " USING fts4(" +
+            "content=" + MESSAGE_BODIES_TABLE + ", " +
+            MESSAGE_BODIES_BODY + "%s" +
+        ");";
+
+    private static final String CREATE_MESSAGE_BODIES_FTS_INSERT_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + MESSAGE_BODIES_FTS_TABLE + "_ai" +
+        " AFTER INSERT ON " + MESSAGE_BODIES_TABLE + " BEGIN" +
+        " INSERT INTO " + MESSAGE_BODIES_FTS_TABLE + "(docid, " + MESSAGE_BODIES_BODY + ")" +
+        " VALUES (new." + BaseColumns._ID + ", new." + MESSAGE_BODIES_BODY + ");" +
+        " END;";
+
+    // The text has to be removed from the index before it is deleted
+    // from the bodies table, since that's where it's read from
+    private static final String CREATE_MESSAGE_BODIES_FTS_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + MESSAGE_BODIES_FTS_TABLE + "_bd" +
+        " BEFORE DELETE ON " + MESSAGE_BODIES_TABLE + " BEGIN" +
+        " DELETE FROM " + MESSAGE_BODIES_FTS_TABLE + " WHERE docid = old." + BaseColumns._ID + ";" +
+        " END;";
+
+    // Full-text index of senders, so that words in the sender (e.g. the
+    // groups of digits in a phone number) can be found by prefix like
+    // words in the body, without scanning every message. Like the body
+    // index, the text is read from the messages table.
+    /* package */ static final String BLOCKED_MESSAGES_SENDER_FTS_TABLE = BlockedMessages.TABLE + "_sender_fts";
+
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_FTS_TABLE =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + " USING fts4(" +
+            "content=" + BlockedMessages.TABLE + ", " +
+            BlockedMessages.SENDER + "%s" +
+        ");";
+
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_FTS_INSERT_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "_ai" +
+        " AFTER INSERT ON " + BlockedMessages.TABLE + " BEGIN" +
+        " INSERT INTO " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "(docid, " + BlockedMessages.SENDER + ")" +
+        " VALUES (new." + BlockedMessages._ID + ", new." + BlockedMessages.SENDER + ");" +
+        " END;";
+
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_FTS_DELETE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "_bd" +
+        " BEFORE DELETE ON " + BlockedMessages.TABLE + " BEGIN" +
+        " DELETE FROM " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + " WHERE docid = old." + BlockedMessages._ID + ";" +
+        " END;";
+
+    // Only changes to the sender need to touch the index
+    // (marking messages read or seen is far more common)
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_FTS_BEFORE_UPDATE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "_bu" +
+        " BEFORE UPDATE OF " + BlockedMessages.SENDER + " ON " + BlockedMessages.TABLE + " BEGIN" +
+        " DELETE FROM " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + " WHERE docid = old." + BlockedMessages._ID + ";" +
+        " END;";
+
+    private static final String CREATE_BLOCKED_MESSAGES_SENDER_FTS_AFTER_UPDATE_TRIGGER =
+        "CREATE TRIGGER IF NOT EXISTS " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "_au" +
+        " AFTER UPDATE OF " + BlockedMessages.SENDER + " ON " + BlockedMessages.TABLE + " BEGIN" +
+        " INSERT INTO " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "(docid, " + BlockedMessages.SENDER + ")" +
+        " VALUES (new." + BlockedMessages._ID + ", new." + BlockedMessages.SENDER + ");" +
+        " END;";
+
     private static final String CREATE_FILTER_RULES_TABLE =
         "CREATE TABLE " + FilterRules.TABLE + "(" +
             FilterRules._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -45,12 +224,138 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Blocked messages are written from the phone process (through
+        // the provider) while the UI may be reading them. With WAL, the
+        // readers don't have to wait for the writer and vice versa, and
+        // a commit only has to append to the log instead of syncing a
+        // rollback journal and the database.
+        db.enableWriteAheadLogging();
+
+        // In WAL mode, NORMAL only skips the sync on commit; the database
+        // can't be corrupted, but a power loss may roll back the last few
+        // transactions. Blocked messages are already journaled by the
+        // phone process until they are saved, so that's fine.
+        execPragma(db, "synchronous = NORMAL");
+        execPragma(db, "cache_size = -" + CACHE_SIZE_KB);
+
+        // Not supported before Android 5.0, in which case it is ignored
+        execPragma(db, "mmap_size = " + MMAP_SIZE);
+
+        // Lets pages freed by pruning old messages be given back a few at
+        // a time. This only takes effect for new databases; existing ones
+        // would need a full VACUUM, so they just reuse their free pages.
+        execPragma(db, "auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+    }
+
+    private static void execPragma(SQLiteDatabase db, String pragma) {
+        // Some pragmas return the new value, which execSQL refuses to
+        // run, so always go through rawQuery instead
+        try (Cursor cursor = db.rawQuery("PRAGMA " + pragma, null)) {
+            cursor.moveToFirst();
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createMessageBodiesTable(db);
         db.execSQL(CREATE_BLOCKED_MESSAGES_TABLE);
+        createBlockedMessagesIndexes(db);
+        createBlockedMessagesBodyReferences(db);
+        createBlockedMessagesSenderFtsTable(db);
         db.execSQL(CREATE_FILTER_RULES_TABLE);
     }
 
+    private void createMessageBodiesTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_MESSAGE_BODIES_TABLE);
+        db.execSQL(CREATE_MESSAGE_BODIES_HASH_INDEX);
+        createMessageBodiesFtsTable(db);
+    }
+
+    private void createBlockedMessagesBodyReferences(SQLiteDatabase db) {
+        db.execSQL(CREATE_BLOCKED_MESSAGES_BODY_ID_INDEX);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_VIEW);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_DELETE_BODY_TRIGGER);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_UPDATE_BODY_TRIGGER);
+    }
+
+    private void createBlockedMessagesIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_BLOCKED_MESSAGES_TIME_SENT_INDEX);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            db.execSQL(CREATE_BLOCKED_MESSAGES_UNSEEN_INDEX);
+        } else {
+            db.execSQL(CREATE_BLOCKED_MESSAGES_UNSEEN_INDEX_COMPAT);
+        }
+        db.execSQL(CREATE_BLOCKED_MESSAGES_SENDER_INDEX);
+    }
+
+    private void createMessageBodiesFtsTable(SQLiteDatabase db) {
+        createFtsTable(db, CREATE_MESSAGE_BODIES_FTS_TABLE);
+        db.execSQL(CREATE_MESSAGE_BODIES_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_MESSAGE_BODIES_FTS_DELETE_TRIGGER);
+    }
+
+    private void createBlockedMessagesSenderFtsTable(SQLiteDatabase db) {
+        createFtsTable(db, CREATE_BLOCKED_MESSAGES_SENDER_FTS_TABLE);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_SENDER_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_SENDER_FTS_DELETE_TRIGGER);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_SENDER_FTS_BEFORE_UPDATE_TRIGGER);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_SENDER_FTS_AFTER_UPDATE_TRIGGER);
+    }
+
+    private static void createFtsTable(SQLiteDatabase db, String createTableFormat) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                db.execSQL(String.format(createTableFormat, ", tokenize=unicode61"));
+                return;
+            } catch (SQLiteException e) {
+                Xlog.w("unicode61 tokenizer not available, using default", e);
+            }
+        }
+        db.execSQL(String.format(createTableFormat, ""));
+    }
+
+    private static long hashMessageBody(String body) {
+        // Only used to narrow down the candidates, the
+        // text is always compared to find a match
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(body.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; ++i) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    // Returns the ID of the given message body, adding it to the
+    // bodies table if it isn't there yet. Should be called in the
+    // same transaction as the insert that uses the ID.
+    /* package */ static long getOrInsertMessageBody(SQLiteDatabase db, String body) {
+        long hash = hashMessageBody(body);
+        String hashString = String.valueOf(hash);
+        try (Cursor cursor = db.query(MESSAGE_BODIES_TABLE,
+            new String[] {BaseColumns._ID, MESSAGE_BODIES_BODY},
+            MESSAGE_BODIES_HASH + "=?", new String[] {hashString},
+            null, null, null))
+        {
+            while (cursor.moveToNext()) {
+                if (body.equals(cursor.getString(1))) {
+                    return cursor.getLong(0);
+                }
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MESSAGE_BODIES_HASH, hash);
+        values.put(MESSAGE_BODIES_BODY, body);
+        return db.insertOrThrow(MESSAGE_BODIES_TABLE, null, values);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Xlog.i("Upgrading database from v%d to v%d", oldVersion, newVersion);
@@ -61,8 +366,10 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
         }
 
         if (oldVersion == 8 && newVersion >= 12) {
+            // This creates the tables from scratch, so
+            // they are already up to date
             upgrade8To12(db);
-            oldVersion = 12;
+            oldVersion = newVersion;
         }
 
         if (oldVersion == 9 && newVersion >= 10) {
@@ -79,6 +386,21 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
             upgrade11To12(db);
             oldVersion = 12;
         }
+
+        if (oldVersion == 12 && newVersion >= 13) {
+            upgrade12To13(db);
+            oldVersion = 13;
+        }
+
+        if ((oldVersion == 13 || oldVersion == 14) && newVersion >= 15) {
+            upgrade13To15(db);
+            oldVersion = 15;
+        }
+
+        if (oldVersion == 15 && newVersion >= 16) {
+            upgrade15To16(db);
+            oldVersion = 16;
+        }
     }
 
     private void upgradePre8(SQLiteDatabase db) {
@@ -140,7 +462,7 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
             ContentValues values = new ContentValues();
             while (messagesCursor.moveToNext()) {
                 values.put(BlockedMessages.SENDER, messagesCursor.getString(0));
-                values.put(BlockedMessages.BODY, messagesCursor.getString(1));
+                values.put(BLOCKED_MESSAGES_BODY_ID, getOrInsertMessageBody(db, messagesCursor.getString(1)));
                 values.put(BlockedMessages.TIME_SENT, messagesCursor.getLong(2));
                 values.put(BlockedMessages.TIME_RECEIVED, messagesCursor.getLong(3));
                 values.put(BlockedMessages.READ, 1);
@@ -181,4 +503,73 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
             " SET " + BlockedMessages.SUB_ID + " = -1" +
             " WHERE " + BlockedMessages.SUB_ID + " = 0");
     }
+
+    private void upgrade12To13(SQLiteDatabase db) {
+        // Add indexes on blocked messages
+        createBlockedMessagesIndexes(db);
+    }
+
+    private void upgrade13To15(SQLiteDatabase db) {
+        // Move message bodies to their own table, deduplicating them,
+        // and rebuild the full-text index on that table instead. The
+        // v14 index is dropped first since it's tied to the old table.
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_BLOCKED_MESSAGES_FTS_TABLE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + LEGACY_BLOCKED_MESSAGES_FTS_TABLE + "_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS " + LEGACY_BLOCKED_MESSAGES_FTS_TABLE + "_bd");
+        db.execSQL("DROP TRIGGER IF EXISTS " + LEGACY_BLOCKED_MESSAGES_FTS_TABLE + "_bu");
+        db.execSQL("DROP TRIGGER IF EXISTS " + LEGACY_BLOCKED_MESSAGES_FTS_TABLE + "_au");
+
+        String oldTable = BlockedMessages.TABLE + "_old";
+        db.execSQL("ALTER TABLE " + BlockedMessages.TABLE + " RENAME TO " + oldTable);
+        createMessageBodiesTable(db);
+        db.execSQL(CREATE_BLOCKED_MESSAGES_TABLE);
+
+        // Hashes are computed here, so the bodies have to be copied
+        // one at a time; the messages can then be matched up with
+        // their bodies by a (temporary) index on the text
+        try (Cursor cursor = db.query(true, oldTable, new String[] {BlockedMessages.BODY},
+            null, null, null, null, null, null))
+        {
+            while (cursor.moveToNext()) {
+                getOrInsertMessageBody(db, cursor.getString(0));
+            }
+        }
+        String tempIndex = MESSAGE_BODIES_TABLE + "_body_tmp_idx";
+        db.execSQL("CREATE INDEX " + tempIndex + " ON " + MESSAGE_BODIES_TABLE + "(" + MESSAGE_BODIES_BODY + ")");
+        db.execSQL(
+            "INSERT INTO " + BlockedMessages.TABLE + "(" +
+                BlockedMessages._ID + ", " +
+                BlockedMessages.SENDER + ", " +
+                BLOCKED_MESSAGES_BODY_ID + ", " +
+                BlockedMessages.TIME_SENT + ", " +
+                BlockedMessages.TIME_RECEIVED + ", " +
+                BlockedMessages.READ + ", " +
+                BlockedMessages.SEEN + ", " +
+                BlockedMessages.SUB_ID +
+            ") SELECT " +
+                "m." + BlockedMessages._ID + ", " +
+                "m." + BlockedMessages.SENDER + ", " +
+                "b." + BaseColumns._ID + ", " +
+                "m." + BlockedMessages.TIME_SENT + ", " +
+                "m." + BlockedMessages.TIME_RECEIVED + ", " +
+                "m." + BlockedMessages.READ + ", " +
+                "m." + BlockedMessages.SEEN + ", " +
+                "m." + BlockedMessages.SUB_ID +
+            " FROM " + oldTable + " m" +
+            " JOIN " + MESSAGE_BODIES_TABLE + " b" +
+            " ON b." + MESSAGE_BODIES_BODY + " = m." + BlockedMessages.BODY);
+        db.execSQL("DROP INDEX " + tempIndex);
+
+        // Dropping the old table also drops its indexes,
+        // so they can be recreated on the new one
+        db.execSQL("DROP TABLE " + oldTable);
+        createBlockedMessagesIndexes(db);
+        createBlockedMessagesBodyReferences(db);
+    }
+
+    private void upgrade15To16(SQLiteDatabase db) {
+        // Add the sender index, filled from the existing messages
+        createBlockedMessagesSenderFtsTable(db);
+        db.execSQL("INSERT INTO " + BLOCKED_MESSAGES_SENDER_FTS_TABLE + "(" + BLOCKED_MESSAGES_SENDER_FTS_TABLE + ") VALUES ('rebuild')");
+    }
 }
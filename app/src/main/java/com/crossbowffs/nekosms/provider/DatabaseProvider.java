@@ -3,18 +3,35 @@ package com.crossbowffs.nekosms.provider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
 import androidx.annotation.NonNull;
+import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.utils.Xlog;
 import com.crossbowffs.nekosms.widget.AutoContentProvider;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
 import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
 
 public class DatabaseProvider extends AutoContentProvider {
+    private static final String ARCHIVE_DIRECTORY = "archive";
+    private static final long DEFAULT_MAX_RUN_TIME_MS = 10 * 1000;
+
+    private BlockedMessageArchive mArchive;
+
     public DatabaseProvider() {
         super(DatabaseContract.AUTHORITY, new ProviderTable[] {
-            new ProviderTable(BlockedMessages.TABLE, BlockedMessages.CONTENT_ITEM_TYPE, BlockedMessages.CONTENT_TYPE),
+            new ProviderTable(BlockedMessages.TABLE, DatabaseHelper.BLOCKED_MESSAGES_VIEW, BlockedMessages.CONTENT_ITEM_TYPE, BlockedMessages.CONTENT_TYPE),
             new ProviderTable(FilterRules.TABLE, FilterRules.CONTENT_ITEM_TYPE, FilterRules.CONTENT_TYPE)
         });
     }
@@ -24,6 +41,210 @@ public class DatabaseProvider extends AutoContentProvider {
         return new DatabaseHelper(context);
     }
 
+    @Override
+    public boolean onCreate() {
+        mArchive = new BlockedMessageArchive(new File(getContext().getFilesDir(), ARCHIVE_DIRECTORY));
+        return super.onCreate();
+    }
+
+    private static boolean isUri(Uri uri, Uri expected) {
+        return expected.getAuthority().equals(uri.getAuthority()) &&
+               expected.getPath().equals(uri.getPath());
+    }
+
+    // Returns the message ID if this is the URI of a single
+    // blocked message, or -1 otherwise
+    private static long getBlockedMessageId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (!DatabaseContract.AUTHORITY.equals(uri.getAuthority()) ||
+            segments.size() != 2 || !BlockedMessages.TABLE.equals(segments.get(0)))
+        {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Cursor querySearch(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(DatabaseHelper.BLOCKED_MESSAGES_VIEW);
+        String query = uri.getQueryParameter(BlockedMessages.QUERY_PARAM_SEARCH);
+        if (query != null) {
+            appendSearchWhere(queryBuilder, query);
+        }
+        Cursor cursor = queryBuilder.query(getDatabase(false), projection, selection, selectionArgs, null, null, sortOrder);
+
+        // Results change whenever the messages do
+        cursor.setNotificationUri(getContext().getContentResolver(), BlockedMessages.CONTENT_URI);
+        return cursor;
+    }
+
+    private static long getLongQueryParameter(Uri uri, String key, long defValue) {
+        String value = uri.getQueryParameter(key);
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+        }
+    }
+
+    private static MatrixCursor newArchiveCursor(String[] projection, List<SmsMessageData> messages) {
+        if (projection == null) {
+            projection = BlockedMessages.ALL;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection);
+        for (SmsMessageData message : messages) {
+            cursor.newRow()
+                .add(BlockedMessages._ID, message.getId())
+                .add(BlockedMessages.SENDER, message.getSender())
+                .add(BlockedMessages.BODY, message.getBody())
+                .add(BlockedMessages.TIME_SENT, message.getTimeSent())
+                .add(BlockedMessages.TIME_RECEIVED, message.getTimeReceived())
+                .add(BlockedMessages.READ, message.isRead() ? 1 : 0)
+                .add(BlockedMessages.SEEN, message.isSeen() ? 1 : 0)
+                .add(BlockedMessages.SUB_ID, message.getSubId());
+        }
+        return cursor;
+    }
+
+    private Cursor queryArchive(Uri uri, String[] projection) {
+        long minTimeSent = getLongQueryParameter(uri, BlockedMessages.QUERY_PARAM_MIN_TIME_SENT, Long.MIN_VALUE);
+        long maxTimeSent = getLongQueryParameter(uri, BlockedMessages.QUERY_PARAM_MAX_TIME_SENT, Long.MAX_VALUE);
+        int limit = (int)getLongQueryParameter(uri, BlockedMessages.QUERY_PARAM_LIMIT, 0);
+
+        // Only the blocks in the requested time range are inflated,
+        // and only until the limit is reached, so callers can page
+        // through the archive as needed
+        MatrixCursor cursor = newArchiveCursor(projection, mArchive.read(minTimeSent, maxTimeSent, limit));
+        cursor.setNotificationUri(getContext().getContentResolver(), BlockedMessages.ARCHIVE_URI);
+        return cursor;
+    }
+
+    private void notifyArchiveChange() {
+        getContext().getContentResolver().notifyChange(BlockedMessages.ARCHIVE_URI, null);
+    }
+
+    private Cursor queryMessage(Uri uri, long messageId, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Cursor cursor = super.query(uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor.getCount() > 0 || selection != null) {
+            return cursor;
+        }
+
+        // Message IDs are never reused, so if it's not in the
+        // database, it may have been archived
+        SmsMessageData message = mArchive.find(messageId);
+        if (message == null) {
+            return cursor;
+        }
+        cursor.close();
+        MatrixCursor archiveCursor = newArchiveCursor(projection, Collections.singletonList(message));
+        archiveCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return archiveCursor;
+    }
+
+    // Scripts that are written without spaces between words. Neither
+    // FTS tokenizer splits these into words, so a whole run of text is
+    // one token and a word in the middle of it can't be found by prefix.
+    private static boolean isUnsegmentedScript(int codePoint) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
+               block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A ||
+               block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B ||
+               block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
+               block == Character.UnicodeBlock.HIRAGANA ||
+               block == Character.UnicodeBlock.KATAKANA ||
+               block == Character.UnicodeBlock.THAI ||
+               block == Character.UnicodeBlock.LAO ||
+               block == Character.UnicodeBlock.KHMER ||
+               block == Character.UnicodeBlock.MYANMAR;
+    }
+
+    private static boolean containsUnsegmentedScript(String str) {
+        for (int i = 0; i < str.length(); ) {
+            int codePoint = str.codePointAt(i);
+            if (isUnsegmentedScript(codePoint)) {
+                return true;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /* package */ static void appendSearchWhere(SQLiteQueryBuilder queryBuilder, String query) {
+        // Every word has to be a word prefix in either the body or the
+        // sender, using their full-text indexes. Each word is quoted so
+        // that user input is never parsed as an FTS query operator (there
+        // is no way to escape quotes in a phrase, so those are dropped).
+        //
+        // Words in scripts without spaces (e.g. Chinese) are searched for
+        // anywhere in the body instead. This scans every body, but only
+        // for those words; everything else still goes through the index.
+        boolean first = true;
+        for (String word : query.replace("\"", " ").trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                queryBuilder.appendWhere(" AND ");
+            }
+            first = false;
+
+            if (containsUnsegmentedScript(word)) {
+                queryBuilder.appendWhere("(" + DatabaseHelper.BLOCKED_MESSAGES_BODY_ID + " IN (SELECT " +
+                    BaseColumns._ID + " FROM " + DatabaseHelper.MESSAGE_BODIES_TABLE + " WHERE " +
+                    DatabaseHelper.MESSAGE_BODIES_BODY + " LIKE ");
+                queryBuilder.appendWhereEscapeString("%" + escapeLikePattern(word) + "%");
+                queryBuilder.appendWhere(" ESCAPE '\\')");
+            } else {
+                queryBuilder.appendWhere("(" + DatabaseHelper.BLOCKED_MESSAGES_BODY_ID + " IN (SELECT docid FROM " +
+                    DatabaseHelper.MESSAGE_BODIES_FTS_TABLE + " WHERE " +
+                    DatabaseHelper.MESSAGE_BODIES_FTS_TABLE + " MATCH ");
+                queryBuilder.appendWhereEscapeString("\"" + word + "*\"");
+                queryBuilder.appendWhere(")");
+            }
+            queryBuilder.appendWhere(" OR " + BlockedMessages._ID + " IN (SELECT docid FROM " +
+                DatabaseHelper.BLOCKED_MESSAGES_SENDER_FTS_TABLE + " WHERE " +
+                DatabaseHelper.BLOCKED_MESSAGES_SENDER_FTS_TABLE + " MATCH ");
+            queryBuilder.appendWhereEscapeString("\"" + word + "*\"");
+            queryBuilder.appendWhere("))");
+        }
+    }
+
+    private static String escapeLikePattern(String str) {
+        return str.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    @Override
+    protected ContentValues prepareValues(SQLiteDatabase db, String tableName, ContentValues values) {
+        // Message bodies are stored in their own table, so
+        // replace the body with the ID of the stored body
+        if (!BlockedMessages.TABLE.equals(tableName) || !values.containsKey(BlockedMessages.BODY)) {
+            return values;
+        }
+        ContentValues newValues = new ContentValues(values);
+
+        // A message that was deleted from the archive is being put back
+        // (e.g. to undo the delete). The deleted copy is still in the
+        // archive, so give it a new ID, or the two would be mixed up.
+        Long id = newValues.getAsLong(BlockedMessages._ID);
+        if (id != null && mArchive.isDeleted(id)) {
+            newValues.remove(BlockedMessages._ID);
+        }
+
+        String body = newValues.getAsString(BlockedMessages.BODY);
+        newValues.remove(BlockedMessages.BODY);
+        if (body != null) {
+            newValues.put(DatabaseHelper.BLOCKED_MESSAGES_BODY_ID, DatabaseHelper.getOrInsertMessageBody(db, body));
+        }
+        return newValues;
+    }
+
     /*
      * Below is an ugly workaround for Android 8.0+. Since the
      * com.android.phone package no longer has SMS permissions,
@@ -36,12 +257,25 @@ public class DatabaseProvider extends AutoContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         checkAccess();
+        if (isUri(uri, BlockedMessages.SEARCH_URI)) {
+            return querySearch(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        if (isUri(uri, BlockedMessages.ARCHIVE_URI)) {
+            return queryArchive(uri, projection);
+        }
+        long messageId = getBlockedMessageId(uri);
+        if (messageId >= 0) {
+            return queryMessage(uri, messageId, projection, selection, selectionArgs, sortOrder);
+        }
         return super.query(uri, projection, selection, selectionArgs, sortOrder);
     }
 
     @Override
     public String getType(@NonNull Uri uri) {
         checkAccess();
+        if (isUri(uri, BlockedMessages.SEARCH_URI) || isUri(uri, BlockedMessages.ARCHIVE_URI)) {
+            return BlockedMessages.CONTENT_TYPE;
+        }
         return super.getType(uri);
     }
 
@@ -60,7 +294,27 @@ public class DatabaseProvider extends AutoContentProvider {
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         checkAccess();
-        return super.delete(uri, selection, selectionArgs);
+        int deletedRows = super.delete(uri, selection, selectionArgs);
+        if (selection != null) {
+            return deletedRows;
+        }
+
+        // Deleting a single message or all messages also applies
+        // to the archive, so they don't come back from there
+        long messageId = getBlockedMessageId(uri);
+        try {
+            if (messageId >= 0 && deletedRows == 0 && mArchive.delete(messageId)) {
+                getContext().getContentResolver().notifyChange(uri, null);
+                notifyArchiveChange();
+                deletedRows = 1;
+            } else if (isUri(uri, BlockedMessages.CONTENT_URI)) {
+                mArchive.deleteAll();
+                notifyArchiveChange();
+            }
+        } catch (IOException e) {
+            Xlog.e("Failed to delete archived messages", e);
+        }
+        return deletedRows;
     }
 
     @Override
@@ -69,6 +323,48 @@ public class DatabaseProvider extends AutoContentProvider {
         return super.update(uri, values, selection, selectionArgs);
     }
 
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        checkAccess();
+        if (BlockedMessages.METHOD_PRUNE.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing prune limits");
+            }
+            long maxAgeMs = extras.getLong(BlockedMessages.EXTRA_MAX_AGE_MS);
+            long maxRunTimeMs = extras.getLong(BlockedMessages.EXTRA_MAX_RUN_TIME_MS, DEFAULT_MAX_RUN_TIME_MS);
+            BlockedMessagePruner pruner = new BlockedMessagePruner(getDatabase(true), getContext().getContentResolver(), maxRunTimeMs);
+            int count = pruner.prune(
+                maxAgeMs,
+                extras.getLong(BlockedMessages.EXTRA_MAX_COUNT),
+                extras.getLong(BlockedMessages.EXTRA_MAX_SIZE_BYTES));
+            if (maxAgeMs > 0) {
+                int archiveCount = mArchive.deleteOlderThan(System.currentTimeMillis() - maxAgeMs);
+                if (archiveCount > 0) {
+                    notifyArchiveChange();
+                }
+                count += archiveCount;
+            }
+            Bundle result = new Bundle();
+            result.putInt(BlockedMessages.EXTRA_PRUNED_COUNT, count);
+            return result;
+        }
+        if (BlockedMessages.METHOD_ARCHIVE.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing archive age");
+            }
+            long maxRunTimeMs = extras.getLong(BlockedMessages.EXTRA_MAX_RUN_TIME_MS, DEFAULT_MAX_RUN_TIME_MS);
+            BlockedMessageArchiver archiver = new BlockedMessageArchiver(getDatabase(true), getContext().getContentResolver(), mArchive, maxRunTimeMs);
+            int count = archiver.archive(extras.getLong(BlockedMessages.EXTRA_MAX_AGE_MS));
+            if (count > 0) {
+                notifyArchiveChange();
+            }
+            Bundle result = new Bundle();
+            result.putInt(BlockedMessages.EXTRA_ARCHIVED_COUNT, count);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
     private void checkAccess() {
         String caller = getCallingPackage();
         if (caller != null && !"com.android.phone".equals(caller) && !"com.crossbowffs.nekosms".equals(caller)) {
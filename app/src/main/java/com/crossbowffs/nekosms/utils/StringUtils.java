@@ -3,6 +3,27 @@ package com.crossbowffs.nekosms.utils;
 public final class StringUtils {
     private StringUtils() { }
 
+    public static char foldCase(char c) {
+        // This is the same case-insensitive comparison used by
+        // String#regionMatches(boolean, ...): two chars are considered
+        // equal if their uppercase or lowercase forms are equal.
+        // Unlike Unicode case folding (used by ICU), this folds both
+        // the Turkish dotted and dotless i to a plain 'i'.
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    public static int foldCase(int codePoint) {
+        return Character.toLowerCase(Character.toUpperCase(codePoint));
+    }
+
+    public static String foldCase(String str) {
+        char[] chars = str.toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = foldCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
     public static boolean equals(String a, String b, boolean ignoreCase) {
         if (ignoreCase) {
             return a.equalsIgnoreCase(b);
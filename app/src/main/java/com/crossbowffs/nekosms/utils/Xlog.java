@@ -9,9 +9,20 @@ public final class Xlog {
     private static final int LOG_LEVEL = BuildConfig.LOG_LEVEL;
     private static final boolean LOG_TO_XPOSED = BuildConfig.LOG_TO_XPOSED;
 
+    private static final Object[] NO_ARGS = new Object[0];
+
     private Xlog() { }
 
-    private static void log(int priority, String message, Object... args) {
+    // Whether a message at the given priority will be written anywhere.
+    // INFO and above are always written (at least to the Xposed log);
+    // anything below that only if it meets LOG_LEVEL. The settings are
+    // compile-time constants, so callers can use this to skip building
+    // expensive log arguments at no cost.
+    public static boolean isLoggable(int priority) {
+        return priority >= LOG_LEVEL || priority >= Log.INFO;
+    }
+
+    private static void log(int priority, String message, Object[] args) {
         // Perform string formatting (if the caller passed a throwable
         // as the last argument, it should be ignored)
         message = String.format(message, args);
@@ -29,29 +40,130 @@ public final class Xlog {
             Log.println(priority, LOG_TAG, message);
         }
 
-        // Write INFO and above to Xposed log, and others if LOG_TO_XPOSED is true
+        // Write INFO and above to Xposed log, and lower priorities
+        // that meet LOG_LEVEL too if LOG_TO_XPOSED is true
         if (priority >= Log.INFO || LOG_TO_XPOSED) {
             XposedBridge.log(LOG_TAG + ": " + message);
         }
     }
 
+    public static void v(String message) {
+        if (isLoggable(Log.VERBOSE)) {
+            log(Log.VERBOSE, message, NO_ARGS);
+        }
+    }
+
+    public static void v(String message, Object arg1) {
+        if (isLoggable(Log.VERBOSE)) {
+            log(Log.VERBOSE, message, new Object[] {arg1});
+        }
+    }
+
+    public static void v(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.VERBOSE)) {
+            log(Log.VERBOSE, message, new Object[] {arg1, arg2});
+        }
+    }
+
     public static void v(String message, Object... args) {
-        log(Log.VERBOSE, message, args);
+        if (isLoggable(Log.VERBOSE)) {
+            log(Log.VERBOSE, message, args);
+        }
+    }
+
+    public static void d(String message) {
+        if (isLoggable(Log.DEBUG)) {
+            log(Log.DEBUG, message, NO_ARGS);
+        }
+    }
+
+    public static void d(String message, Object arg1) {
+        if (isLoggable(Log.DEBUG)) {
+            log(Log.DEBUG, message, new Object[] {arg1});
+        }
+    }
+
+    public static void d(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            log(Log.DEBUG, message, new Object[] {arg1, arg2});
+        }
     }
 
     public static void d(String message, Object... args) {
-        log(Log.DEBUG, message, args);
+        if (isLoggable(Log.DEBUG)) {
+            log(Log.DEBUG, message, args);
+        }
+    }
+
+    public static void i(String message) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, message, NO_ARGS);
+        }
+    }
+
+    public static void i(String message, Object arg1) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, message, new Object[] {arg1});
+        }
+    }
+
+    public static void i(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, message, new Object[] {arg1, arg2});
+        }
     }
 
     public static void i(String message, Object... args) {
-        log(Log.INFO, message, args);
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, message, args);
+        }
+    }
+
+    public static void w(String message) {
+        if (isLoggable(Log.WARN)) {
+            log(Log.WARN, message, NO_ARGS);
+        }
+    }
+
+    public static void w(String message, Object arg1) {
+        if (isLoggable(Log.WARN)) {
+            log(Log.WARN, message, new Object[] {arg1});
+        }
+    }
+
+    public static void w(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.WARN)) {
+            log(Log.WARN, message, new Object[] {arg1, arg2});
+        }
     }
 
     public static void w(String message, Object... args) {
-        log(Log.WARN, message, args);
+        if (isLoggable(Log.WARN)) {
+            log(Log.WARN, message, args);
+        }
+    }
+
+    public static void e(String message) {
+        if (isLoggable(Log.ERROR)) {
+            log(Log.ERROR, message, NO_ARGS);
+        }
+    }
+
+    public static void e(String message, Object arg1) {
+        if (isLoggable(Log.ERROR)) {
+            log(Log.ERROR, message, new Object[] {arg1});
+        }
+    }
+
+    public static void e(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.ERROR)) {
+            log(Log.ERROR, message, new Object[] {arg1, arg2});
+        }
     }
 
     public static void e(String message, Object... args) {
-        log(Log.ERROR, message, args);
+        if (isLoggable(Log.ERROR)) {
+            log(Log.ERROR, message, args);
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package com.crossbowffs.nekosms.widget;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -99,6 +100,12 @@ public abstract class AutoContentLoader<T> {
         }
     }
 
+    public ContentProviderOperation newInsertOperation(T data) {
+        return ContentProviderOperation.newInsert(getContentUri())
+            .withValues(serialize(data))
+            .build();
+    }
+
     public void deleteAll(Context context) {
         deleteAll(context, null, null);
     }
@@ -2,34 +2,54 @@ package com.crossbowffs.nekosms.widget;
 
 import android.content.*;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 public abstract class AutoContentProvider extends ContentProvider {
     protected static class ProviderTable {
         private final String mTableName;
+        private final String mQueryTableName;
         private final String mItemType;
         private final String mDirType;
 
         public ProviderTable(String tableName, String itemType, String dirType) {
+            this(tableName, tableName, itemType, dirType);
+        }
+
+        // Queries are run against queryTableName (e.g. a view that
+        // joins in other tables) instead of the table itself
+        public ProviderTable(String tableName, String queryTableName, String itemType, String dirType) {
             mTableName = tableName;
+            mQueryTableName = queryTableName;
             mItemType = itemType;
             mDirType = dirType;
         }
     }
 
+    private final String mAuthority;
     private final ProviderTable[] mTables;
     private final UriMatcher mUriMatcher;
     private SQLiteOpenHelper mDatabaseHelper;
 
+    // Changes made inside a batch on the current thread, which are
+    // notified once the batch is committed rather than one by one
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchChanges = new ThreadLocal<>();
+
     protected AutoContentProvider(String authority, ProviderTable[] tables) {
+        mAuthority = authority;
         mTables = tables;
         mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         for (int i = 0; i < tables.length; ++i) {
@@ -55,7 +75,7 @@ public abstract class AutoContentProvider extends ContentProvider {
         if (isItemUri(matchCode)) {
             queryBuilder.appendWhere(BaseColumns._ID + "=" + uri.getLastPathSegment());
         }
-        queryBuilder.setTables(getTableName(matchCode));
+        queryBuilder.setTables(mTables[matchCode / 2].mQueryTableName);
         SQLiteDatabase db = getDatabase(false);
         Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -78,10 +98,18 @@ public abstract class AutoContentProvider extends ContentProvider {
             throw new IllegalArgumentException("Invalid insert URI: " + uri);
         }
         SQLiteDatabase db = getDatabase(true);
-        long row = db.insert(getTableName(matchCode), null, values);
+        String tableName = getTableName(matchCode);
+        long row;
+        db.beginTransaction();
+        try {
+            row = db.insert(tableName, null, prepareValues(db, tableName, values));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         Uri newUri = ContentUris.withAppendedId(uri, row);
         if (row >= 0) {
-            getContext().getContentResolver().notifyChange(newUri, null);
+            notifyChange(newUri);
         }
         return newUri;
     }
@@ -93,19 +121,57 @@ public abstract class AutoContentProvider extends ContentProvider {
             throw new IllegalArgumentException("Invalid insert URI: " + uri);
         }
 
+        // All rows are inserted in one transaction (so there is only
+        // one commit to sync to disk), using a compiled statement that
+        // is reused as long as the rows have the same columns
         String tableName = getTableName(matchCode);
         int successCount = 0;
-        ContentResolver contentResolver = getContext().getContentResolver();
         SQLiteDatabase db = getDatabase(true);
-        for (ContentValues values : bulkValues) {
-            long row = db.insert(tableName, null, values);
-            if (row >= 0) {
-                Uri newUri = ContentUris.withAppendedId(uri, row);
-                contentResolver.notifyChange(newUri, null);
-                successCount++;
+        SQLiteStatement statement = null;
+        String[] columns = null;
+        db.beginTransaction();
+        try {
+            for (ContentValues values : bulkValues) {
+                values = prepareValues(db, tableName, values);
+                if (statement == null || !hasSameColumns(values, columns)) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    columns = values.keySet().toArray(new String[values.size()]);
+                    statement = compileInsert(db, tableName, columns);
+                }
+
+                long row;
+                if (statement == null) {
+                    row = db.insert(tableName, null, values);
+                } else {
+                    statement.clearBindings();
+                    for (int i = 0; i < columns.length; ++i) {
+                        bindValue(statement, i + 1, values.get(columns[i]));
+                    }
+                    try {
+                        row = statement.executeInsert();
+                    } catch (SQLException e) {
+                        // Same as SQLiteDatabase#insert, skip rows
+                        // that violate a constraint
+                        row = -1;
+                    }
+                }
+                if (row >= 0) {
+                    successCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (statement != null) {
+                statement.close();
             }
+            db.endTransaction();
         }
 
+        if (successCount > 0) {
+            notifyChange(uri);
+        }
         return successCount;
     }
 
@@ -121,7 +187,7 @@ public abstract class AutoContentProvider extends ContentProvider {
         SQLiteDatabase db = getDatabase(true);
         int deletedRows = db.delete(getTableName(matchCode), selection, selectionArgs);
         if (selection == null || deletedRows > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return deletedRows;
     }
@@ -136,9 +202,17 @@ public abstract class AutoContentProvider extends ContentProvider {
             selection = getCombinedSelectionString(BaseColumns._ID, uri, selection);
         }
         SQLiteDatabase db = getDatabase(true);
-        int updatedRows = db.update(getTableName(matchCode), values, selection, selectionArgs);
+        String tableName = getTableName(matchCode);
+        int updatedRows;
+        db.beginTransaction();
+        try {
+            updatedRows = db.update(tableName, prepareValues(db, tableName, values), selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (updatedRows > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return updatedRows;
     }
@@ -153,6 +227,8 @@ public abstract class AutoContentProvider extends ContentProvider {
         // methods that take the database as a parameter.
         SQLiteDatabase db = getDatabase(true);
         ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        LinkedHashSet<Uri> changes = new LinkedHashSet<>();
+        mBatchChanges.set(changes);
         db.beginTransaction();
         try {
             for (int i = 0; i < results.length; ++i) {
@@ -161,10 +237,92 @@ public abstract class AutoContentProvider extends ContentProvider {
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            mBatchChanges.remove();
         }
+
+        // Observers are only told about the batch once it's committed
+        // (and only if it was), so they don't reload halfway through
+        notifyBatchChanges(changes);
         return results;
     }
 
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void notifyBatchChanges(LinkedHashSet<Uri> changes) {
+        // Send one notification per table. If only a single row of the
+        // table changed, keep its URI so that observers can choose to
+        // reload just that row; otherwise, notify the whole table.
+        LinkedHashMap<Uri, Uri> tableChanges = new LinkedHashMap<>();
+        for (Uri uri : changes) {
+            int matchCode = mUriMatcher.match(uri);
+            Uri tableUri = getTableUri(matchCode);
+            if (tableChanges.containsKey(tableUri)) {
+                tableChanges.put(tableUri, tableUri);
+            } else {
+                tableChanges.put(tableUri, isItemUri(matchCode) ? uri : tableUri);
+            }
+        }
+
+        ContentResolver contentResolver = getContext().getContentResolver();
+        for (Map.Entry<Uri, Uri> entry : tableChanges.entrySet()) {
+            contentResolver.notifyChange(entry.getValue(), null);
+        }
+    }
+
+    private static boolean hasSameColumns(ContentValues values, String[] columns) {
+        if (values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SQLiteStatement compileInsert(SQLiteDatabase db, String tableName, String[] columns) {
+        // An empty row needs the null column hack, which
+        // SQLiteDatabase#insert takes care of
+        if (columns.length == 0) {
+            return null;
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(tableName).append(" (");
+        sql.append(TextUtils.join(",", columns));
+        sql.append(") VALUES (");
+        char[] params = new char[columns.length * 2 - 1];
+        Arrays.fill(params, ',');
+        for (int i = 0; i < params.length; i += 2) {
+            params[i] = '?';
+        }
+        sql.append(params).append(')');
+        return db.compileStatement(sql.toString());
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            statement.bindLong(index, ((Number)value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number)value).doubleValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean)value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[])value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
     private boolean isItemUri(int matchCode) {
         return matchCode % 2 == 1;
     }
@@ -173,6 +331,14 @@ public abstract class AutoContentProvider extends ContentProvider {
         return mTables[matchCode / 2].mTableName;
     }
 
+    private Uri getTableUri(int matchCode) {
+        return new Uri.Builder()
+            .scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(mAuthority)
+            .appendPath(getTableName(matchCode))
+            .build();
+    }
+
     private String getType(int matchCode) {
         ProviderTable table = mTables[matchCode / 2];
         if (isItemUri(matchCode)) {
@@ -184,6 +350,14 @@ public abstract class AutoContentProvider extends ContentProvider {
 
     protected abstract SQLiteOpenHelper createDatabaseHelper(Context context);
 
+    // Called in the same transaction as the insert or update, before the
+    // values are written to the table. Subclasses can override this to
+    // translate the values to the table's columns; the given values
+    // must not be modified.
+    protected ContentValues prepareValues(SQLiteDatabase db, String tableName, ContentValues values) {
+        return values;
+    }
+
     protected SQLiteDatabase getDatabase(boolean write) {
         if (write) {
             return mDatabaseHelper.getWritableDatabase();
@@ -0,0 +1,431 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import com.crossbowffs.nekosms.BuildConfig;
+import com.crossbowffs.nekosms.consts.BroadcastConsts;
+import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.loader.BlockedSmsLoader;
+import com.crossbowffs.nekosms.provider.DatabaseContract;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Saves blocked messages to the app's database without making the SMS
+// handler wait for it. Inserting into the database directly means an
+// IPC into the app (which may have to be started first) and an fsync
+// of the database, all before the message can be dropped. Instead,
+// each message is appended to a journal file in the phone process,
+// which is enough to not lose it, and the journal is flushed to the
+// database in batches on a background thread. Anything left in the
+// journal (e.g. if the phone process died) is flushed on startup.
+/* package */ class BlockedSmsWriter {
+    private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
+    private static final String JOURNAL_FILE = "nekosms_blocked.journal";
+    private static final int JOURNAL_VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // How long to wait for more messages before flushing, and how
+    // long to wait before trying again if flushing failed (e.g.
+    // because the app is being updated). The retry delay doubles
+    // with every failure in a row, up to the maximum.
+    private static final long FLUSH_DELAY_MS = 200;
+    private static final long RETRY_DELAY_MS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 60 * 1000;
+
+    // If this many messages are waiting to be flushed (e.g. because
+    // the app has been unavailable for a long time), new messages are
+    // inserted directly instead, so the journal and the messages kept
+    // in memory for it don't grow without bound. If that fails too,
+    // the message is not blocked.
+    private static final int MAX_PENDING_MESSAGES = 1000;
+
+    private final Context mContext;
+    private final File mJournalFile;
+    private final ScheduledExecutorService mExecutor;
+
+    // Messages in the journal that have not been flushed yet, and the
+    // open journal itself; guarded by mPending
+    private final ArrayList<SmsMessageData> mPending = new ArrayList<>();
+    private DataOutputStream mJournal;
+    private FileOutputStream mJournalFileStream;
+    private boolean mFlushScheduled;
+    private long mRetryDelayMs = RETRY_DELAY_MS;
+
+    // Only accessed on the executor thread
+    private ContentProviderClient mClient;
+
+    public BlockedSmsWriter(Context context) {
+        mContext = context;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILE);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        // Done before any messages are written, so that the journal
+        // does not have to be shared with them while it is read
+        replayJournal();
+    }
+
+    // Returns once the message is safely in the journal. If that
+    // fails, the message is inserted into the database directly.
+    // Returns false if the message could not be saved either way,
+    // in which case it must not be blocked.
+    public boolean write(SmsMessageData message) {
+        synchronized (mPending) {
+            if (mPending.size() < MAX_PENDING_MESSAGES) {
+                try {
+                    appendToJournal(message);
+                    mPending.add(message);
+                    scheduleFlush(FLUSH_DELAY_MS);
+                    return true;
+                } catch (IOException e) {
+                    Xlog.e("Failed to write blocked message to journal", e);
+                    closeJournal();
+                }
+            } else {
+                Xlog.w("Too many blocked messages waiting to be saved, saving directly");
+            }
+        }
+
+        Uri messageUri;
+        try {
+            messageUri = BlockedSmsLoader.get().insert(mContext, message);
+        } catch (Exception e) {
+            Xlog.e("Failed to save blocked message", e);
+            return false;
+        }
+        if (messageUri == null) {
+            Xlog.e("Failed to save blocked message");
+            return false;
+        }
+        broadcastBlockedSms(messageUri);
+        return true;
+    }
+
+    private void scheduleFlush(long delayMs) {
+        // Must hold mPending
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(() -> flush(), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    // Each record is its length, the serialized message, and a CRC of
+    // the message, so that a record that was only partially written
+    // when the process died can be detected and ignored
+    private static byte[] serialize(SmsMessageData message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(JOURNAL_VERSION);
+        writeString(out, message.getSender());
+        writeString(out, message.getBody());
+        out.writeLong(message.getTimeSent());
+        out.writeLong(message.getTimeReceived());
+        out.writeInt(message.getSubId());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static SmsMessageData deserialize(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readInt() != JOURNAL_VERSION) {
+            throw new IOException("Unknown journal record version");
+        }
+        SmsMessageData message = new SmsMessageData();
+        message.setSender(readString(in));
+        message.setBody(readString(in));
+        message.setTimeSent(in.readLong());
+        message.setTimeReceived(in.readLong());
+        message.setSubId(in.readInt());
+        return message;
+    }
+
+    private static void writeRecord(DataOutputStream out, SmsMessageData message) throws IOException {
+        byte[] record = serialize(message);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeLong(crc.getValue());
+    }
+
+    private void appendToJournal(SmsMessageData message) throws IOException {
+        // Must hold mPending
+        if (mJournal == null) {
+            mJournalFileStream = new FileOutputStream(mJournalFile, true);
+            mJournal = new DataOutputStream(new BufferedOutputStream(mJournalFileStream));
+        }
+        writeRecord(mJournal, message);
+        mJournal.flush();
+        mJournalFileStream.getFD().sync();
+    }
+
+    private void closeJournal() {
+        // Must hold mPending
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                // Ignore, we're not going to write to it anymore
+            }
+            mJournal = null;
+            mJournalFileStream = null;
+        }
+    }
+
+    private void replayJournal() {
+        ArrayList<SmsMessageData> messages = new ArrayList<>();
+        if (mJournalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+                while (true) {
+                    byte[] record;
+                    long expectedCrc;
+                    try {
+                        int length = in.readInt();
+                        if (length < 0 || length > MAX_RECORD_SIZE) {
+                            Xlog.w("Blocked message journal is corrupt, ignoring the rest of it");
+                            break;
+                        }
+                        record = new byte[length];
+                        in.readFully(record);
+                        expectedCrc = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (crc.getValue() != expectedCrc) {
+                        Xlog.w("Blocked message journal is corrupt, ignoring the rest of it");
+                        break;
+                    }
+                    messages.add(deserialize(record));
+                }
+            } catch (IOException e) {
+                Xlog.e("Failed to read blocked message journal", e);
+            }
+        }
+
+        synchronized (mPending) {
+            // Rewrite the journal so that a torn record at the end
+            // is dropped before any new records are appended after it
+            mPending.addAll(messages);
+            try {
+                rewriteJournal();
+            } catch (IOException e) {
+                Xlog.e("Failed to rewrite blocked message journal", e);
+            }
+            if (!mPending.isEmpty()) {
+                Xlog.i("Replaying %d blocked messages from journal", mPending.size());
+                scheduleFlush(0);
+            }
+        }
+    }
+
+    private void rewriteJournal() throws IOException {
+        // Must hold mPending
+        closeJournal();
+        if (mPending.isEmpty()) {
+            if (mJournalFile.exists() && !mJournalFile.delete()) {
+                throw new IOException("Failed to delete journal");
+            }
+            return;
+        }
+
+        File tempFile = new File(mJournalFile.getPath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+            for (SmsMessageData message : mPending) {
+                writeRecord(out, message);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        }
+        if (!tempFile.renameTo(mJournalFile)) {
+            throw new IOException("Failed to replace journal");
+        }
+    }
+
+    private ContentProviderClient getClient() {
+        // Use an unstable client, a stable one would take the
+        // phone process down with it if the app process died
+        if (mClient == null) {
+            mClient = mContext.getContentResolver().acquireUnstableContentProviderClient(DatabaseContract.AUTHORITY);
+        }
+        return mClient;
+    }
+
+    private void releaseClient() {
+        if (mClient != null) {
+            mClient.release();
+            mClient = null;
+        }
+    }
+
+    private void scheduleRetry() {
+        // Must hold mPending. Nothing is ever dropped from the journal,
+        // however the save fails, so back off to avoid retrying a failure
+        // that won't go away (e.g. a broken database) over and over.
+        scheduleFlush(mRetryDelayMs);
+        mRetryDelayMs = Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+    }
+
+    private void flush() {
+        List<SmsMessageData> batch;
+        synchronized (mPending) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(mPending);
+        }
+
+        ContentProviderClient client = getClient();
+        if (client == null) {
+            Xlog.w("Database provider not available, will try again later");
+            synchronized (mPending) {
+                scheduleRetry();
+            }
+            return;
+        }
+
+        // applyBatch rather than bulkInsert, since we need the URI
+        // of each message to notify the app about it
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        for (SmsMessageData message : batch) {
+            operations.add(BlockedSmsLoader.get().newInsertOperation(message));
+        }
+
+        List<Uri> messageUris = new ArrayList<>(batch.size());
+        try {
+            for (ContentProviderResult result : client.applyBatch(operations)) {
+                messageUris.add(result.uri);
+            }
+        } catch (Exception e) {
+            if (e instanceof DeadObjectException) {
+                releaseClient();
+            }
+            if (e instanceof RemoteException) {
+                Xlog.e("Failed to save %d blocked messages, will try again later", batch.size(), e);
+                synchronized (mPending) {
+                    scheduleRetry();
+                }
+            } else {
+                // The batch is rolled back as a whole, so save each
+                // message on its own, in case only some of them are
+                // the problem
+                Xlog.e("Failed to save %d blocked messages, saving them one by one", batch.size(), e);
+                saveIndividually(client, batch);
+            }
+            return;
+        }
+
+        Xlog.i("Saved %d blocked messages", batch.size());
+        finishFlush(batch.size(), batch, messageUris);
+    }
+
+    private void saveIndividually(ContentProviderClient client, List<SmsMessageData> batch) {
+        List<SmsMessageData> saved = new ArrayList<>(batch.size());
+        List<Uri> messageUris = new ArrayList<>(batch.size());
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        for (SmsMessageData message : batch) {
+            operations.clear();
+            operations.add(BlockedSmsLoader.get().newInsertOperation(message));
+            try {
+                messageUris.add(client.applyBatch(operations)[0].uri);
+                saved.add(message);
+            } catch (Exception e) {
+                // Stays in the journal until it can be saved
+                Xlog.e("Failed to save blocked message (sent at %d)", message.getTimeSent(), e);
+                if (e instanceof DeadObjectException) {
+                    releaseClient();
+                }
+                if (e instanceof RemoteException) {
+                    break;
+                }
+            }
+        }
+        finishFlush(batch.size(), saved, messageUris);
+    }
+
+    // Removes the saved messages out of the batchSize that were tried
+    // from the journal, notifies the app about them, and schedules
+    // another flush for whatever is left
+    private void finishFlush(int batchSize, List<SmsMessageData> saved, List<Uri> messageUris) {
+        Set<SmsMessageData> savedSet = Collections.newSetFromMap(new IdentityHashMap<SmsMessageData, Boolean>());
+        savedSet.addAll(saved);
+        synchronized (mPending) {
+            for (Iterator<SmsMessageData> it = mPending.iterator(); it.hasNext(); ) {
+                if (savedSet.contains(it.next())) {
+                    it.remove();
+                }
+            }
+            if (!saved.isEmpty()) {
+                try {
+                    rewriteJournal();
+                } catch (IOException e) {
+                    // Worst case, these messages are saved twice
+                    Xlog.e("Failed to rewrite blocked message journal", e);
+                }
+            }
+            if (saved.size() < batchSize) {
+                scheduleRetry();
+            } else {
+                mRetryDelayMs = RETRY_DELAY_MS;
+                if (!mPending.isEmpty()) {
+                    scheduleFlush(FLUSH_DELAY_MS);
+                }
+            }
+        }
+
+        for (Uri messageUri : messageUris) {
+            broadcastBlockedSms(messageUri);
+        }
+    }
+
+    private void broadcastBlockedSms(Uri messageUri) {
+        // Permissions are not required here since we are only
+        // broadcasting the URI of the message, not the message
+        // contents. The provider requires permissions to read
+        // the actual message contents.
+        Intent intent = new Intent(BroadcastConsts.ACTION_RECEIVE_SMS);
+        intent.setComponent(new ComponentName(NEKOSMS_PACKAGE, BroadcastConsts.RECEIVER_NAME));
+        intent.putExtra(BroadcastConsts.EXTRA_MESSAGE, messageUri);
+        mContext.sendBroadcast(intent);
+    }
+}
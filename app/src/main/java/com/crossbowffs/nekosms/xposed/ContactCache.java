@@ -0,0 +1,270 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import com.crossbowffs.nekosms.utils.ContactUtils;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps the phone numbers of all contacts in memory, so that checking
+// whether a message is from a contact does not need a query into the
+// contacts provider for every message. Numbers are keyed by their last
+// few digits (like PhoneLookup does), and then compared the same way
+// PhoneLookup compares them. After the initial load, only contacts that
+// were changed or deleted since the last load are queried again.
+/* package */ class ContactCache {
+    // Number of trailing digits used to look up a number,
+    // the same as PhoneNumberUtils.toCallerIDMinMatch
+    private static final int MIN_MATCH = 7;
+
+    // Maximum number of changed contacts to reload by ID; beyond
+    // this, we just read all numbers and pick out the changed ones
+    private static final int MAX_INCREMENTAL_UPDATES = 500;
+
+    private static final String[] CONTACT_PROJECTION = {
+        ContactsContract.Contacts._ID,
+        ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+    };
+
+    private static final String[] PHONE_PROJECTION = {
+        ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+        ContactsContract.CommonDataKinds.Phone.NUMBER,
+    };
+
+    private static final String[] DELETED_PROJECTION = {
+        ContactsContract.DeletedContacts.CONTACT_ID,
+        ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP,
+    };
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+
+    // Only accessed on the executor thread
+    private final HashMap<Long, ArrayList<String>> mNumbersByContact = new HashMap<>();
+    private long mLastUpdatedTime;
+    private long mLastDeletedTime;
+
+    // Guarded by mExecutor; set while an update is queued
+    // so that bursts of changes (e.g. a sync) are coalesced
+    private boolean mUpdateScheduled;
+
+    // Rebuilt from mNumbersByContact after every update and never
+    // modified afterwards, so it can be read without locking. Null
+    // until the first load completes, or if the contacts cannot be
+    // read, in which case we fall back to querying every time.
+    private volatile HashMap<String, String[]> mNumbersByKey;
+
+    public ContactCache(Context context) {
+        mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor();
+        if (registerContentObserver()) {
+            scheduleUpdate();
+        }
+    }
+
+    public boolean isContact(String number) {
+        HashMap<String, String[]> numbersByKey = mNumbersByKey;
+        String key = getLookupKey(number);
+        if (numbersByKey == null || key == null) {
+            // Not loaded yet (or never will be, if we can't tell when
+            // the contacts change), or the number has no digits (in
+            // which case it's easier to let the provider decide)
+            return ContactUtils.isContact(mContext, number);
+        }
+
+        String[] candidates = numbersByKey.get(key);
+        if (candidates != null) {
+            for (String candidate : candidates) {
+                if (PhoneNumberUtils.compare(candidate, number)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getLookupKey(String number) {
+        if (number == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(MIN_MATCH);
+        for (int i = number.length() - 1; i >= 0 && sb.length() < MIN_MATCH; --i) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private void scheduleUpdate() {
+        synchronized (mExecutor) {
+            if (mUpdateScheduled) {
+                return;
+            }
+            mUpdateScheduled = true;
+        }
+
+        mExecutor.execute(() -> {
+            synchronized (mExecutor) {
+                mUpdateScheduled = false;
+            }
+            try {
+                update();
+            } catch (Exception e) {
+                Xlog.e("Failed to load contacts", e);
+            }
+        });
+    }
+
+    private void update() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        boolean initial = mNumbersByKey == null;
+
+        // Deleted contacts are only reported after the initial load,
+        // before that there is nothing to remove them from
+        if (!initial) {
+            try (Cursor cursor = contentResolver.query(
+                ContactsContract.DeletedContacts.CONTENT_URI,
+                DELETED_PROJECTION,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?",
+                new String[] {String.valueOf(mLastDeletedTime)},
+                null))
+            {
+                while (cursor != null && cursor.moveToNext()) {
+                    mNumbersByContact.remove(cursor.getLong(0));
+                    mLastDeletedTime = Math.max(mLastDeletedTime, cursor.getLong(1));
+                }
+            }
+        }
+
+        // Every number of a changed contact is reloaded, since
+        // we can't tell which of them changed (if any)
+        String selection = initial ? null : ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?";
+        String[] selectionArgs = initial ? null : new String[] {String.valueOf(mLastUpdatedTime)};
+        long lastUpdatedTime = mLastUpdatedTime;
+        ArrayList<Long> changedIds = new ArrayList<>();
+        try (Cursor cursor = contentResolver.query(
+            ContactsContract.Contacts.CONTENT_URI, CONTACT_PROJECTION, selection, selectionArgs, null))
+        {
+            if (cursor == null) {
+                Xlog.e("Failed to load contacts (query returned null)");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                changedIds.add(cursor.getLong(0));
+                lastUpdatedTime = Math.max(lastUpdatedTime, cursor.getLong(1));
+            }
+        }
+
+        if (initial) {
+            // The deleted contacts table is cleaned up periodically,
+            // so only entries newer than the initial load matter
+            mLastDeletedTime = lastUpdatedTime;
+        } else if (changedIds.isEmpty()) {
+            publish();
+            return;
+        }
+
+        HashMap<Long, ArrayList<String>> changedNumbers = new HashMap<>();
+        for (long id : changedIds) {
+            changedNumbers.put(id, new ArrayList<>());
+        }
+        String phoneSelection = null;
+        if (!initial && changedIds.size() <= MAX_INCREMENTAL_UPDATES) {
+            phoneSelection = ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " IN (" + joinIds(changedIds) + ")";
+        }
+        try (Cursor cursor = contentResolver.query(
+            ContactsContract.CommonDataKinds.Phone.CONTENT_URI, PHONE_PROJECTION, phoneSelection, null, null))
+        {
+            if (cursor == null) {
+                Xlog.e("Failed to load contact numbers (query returned null)");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                String number = cursor.getString(1);
+                ArrayList<String> numbers = changedNumbers.get(cursor.getLong(0));
+                if (numbers != null && number != null) {
+                    numbers.add(number);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, ArrayList<String>> entry : changedNumbers.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                mNumbersByContact.remove(entry.getKey());
+            } else {
+                mNumbersByContact.put(entry.getKey(), entry.getValue());
+            }
+        }
+        mLastUpdatedTime = lastUpdatedTime;
+        Xlog.i("Loaded numbers of %d changed contacts", changedIds.size());
+        publish();
+    }
+
+    private static String joinIds(ArrayList<Long> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    private void publish() {
+        HashMap<String, ArrayList<String>> builder = new HashMap<>();
+        for (ArrayList<String> numbers : mNumbersByContact.values()) {
+            for (String number : numbers) {
+                String key = getLookupKey(number);
+                if (key == null) {
+                    continue;
+                }
+                ArrayList<String> list = builder.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    builder.put(key, list);
+                }
+                list.add(number);
+            }
+        }
+
+        HashMap<String, String[]> numbersByKey = new HashMap<>(builder.size() * 2);
+        for (Map.Entry<String, ArrayList<String>> entry : builder.entrySet()) {
+            ArrayList<String> list = entry.getValue();
+            numbersByKey.put(entry.getKey(), list.toArray(new String[list.size()]));
+        }
+        mNumbersByKey = numbersByKey;
+    }
+
+    private boolean registerContentObserver() {
+        Xlog.i("Registering contacts content observer");
+
+        ContentObserver contentObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleUpdate();
+            }
+        };
+
+        try {
+            mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI, true, contentObserver);
+        } catch (SecurityException e) {
+            Xlog.e("Failed to register contacts content observer", e);
+            return false;
+        }
+        return true;
+    }
+}
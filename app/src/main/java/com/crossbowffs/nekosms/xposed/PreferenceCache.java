@@ -0,0 +1,170 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import com.crossbowffs.nekosms.BuildConfig;
+import com.crossbowffs.nekosms.consts.PreferenceConsts;
+import com.crossbowffs.nekosms.utils.Xlog;
+import com.crossbowffs.remotepreferences.RemotePreferenceAccessException;
+import com.crossbowffs.remotepreferences.RemotePreferences;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps a copy of the preferences that are read for every message.
+// Each RemotePreferences read is an IPC into the app (which may have
+// to be started first), so they are loaded once and then reloaded in
+// the background whenever the app's preference provider reports that
+// they have changed.
+/* package */ class PreferenceCache {
+    private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
+
+    private static class Snapshot {
+        private final boolean mEnable;
+        private final boolean mVerboseLogging;
+        private final boolean mWhitelistContacts;
+
+        private Snapshot(boolean enable, boolean verboseLogging, boolean whitelistContacts) {
+            mEnable = enable;
+            mVerboseLogging = verboseLogging;
+            mWhitelistContacts = whitelistContacts;
+        }
+    }
+
+    private final Context mContext;
+    private final RemotePreferences mPreferences;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // RemotePreferences only holds a weak reference to its
+    // listeners, so we have to keep this one alive ourselves
+    private final SharedPreferences.OnSharedPreferenceChangeListener mChangeListener;
+
+    // Null until the preferences have been read successfully (or
+    // if we cannot be notified of changes, in which case they are
+    // read for every message like before)
+    private volatile Snapshot mSnapshot;
+
+    public PreferenceCache(Context context) {
+        mContext = context;
+        mPreferences = new RemotePreferences(context,
+            PreferenceConsts.REMOTE_PREFS_AUTHORITY,
+            PreferenceConsts.FILE_MAIN,
+            true);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mChangeListener = registerChangeListener();
+        registerBroadcastReceiver();
+        scheduleReload();
+    }
+
+    public boolean isEnabled() {
+        return getSnapshot().mEnable;
+    }
+
+    public boolean isVerboseLogging() {
+        return getSnapshot().mVerboseLogging;
+    }
+
+    public boolean isWhitelistContacts() {
+        return getSnapshot().mWhitelistContacts;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        // Not loaded yet, or the last attempt failed; read them now,
+        // but only keep the result if nothing changed in the meantime
+        return loadSnapshot(mGeneration.get());
+    }
+
+    private Snapshot loadSnapshot(int generation) {
+        boolean[] failed = new boolean[1];
+        Snapshot snapshot = new Snapshot(
+            getBooleanPref(PreferenceConsts.KEY_ENABLE, PreferenceConsts.KEY_ENABLE_DEFAULT, failed),
+            getBooleanPref(PreferenceConsts.KEY_VERBOSE_LOGGING, PreferenceConsts.KEY_VERBOSE_LOGGING_DEFAULT, failed),
+            getBooleanPref(PreferenceConsts.KEY_WHITELIST_CONTACTS, PreferenceConsts.KEY_WHITELIST_CONTACTS_DEFAULT, failed));
+
+        // Don't cache the defaults if the app could not be reached,
+        // or if we would not find out when the preferences change
+        if (!failed[0] && mChangeListener != null && generation == mGeneration.get()) {
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private boolean getBooleanPref(String key, boolean defValue, boolean[] failed) {
+        try {
+            return mPreferences.getBoolean(key, defValue);
+        } catch (RemotePreferenceAccessException e) {
+            Xlog.e("Failed to read preference: %s", key, e);
+            failed[0] = true;
+            return defValue;
+        }
+    }
+
+    private void invalidate() {
+        mGeneration.incrementAndGet();
+        mSnapshot = null;
+    }
+
+    private void scheduleReload() {
+        final int generation = mGeneration.get();
+        mExecutor.execute(() -> {
+            if (generation == mGeneration.get()) {
+                loadSnapshot(generation);
+            }
+        });
+    }
+
+    private SharedPreferences.OnSharedPreferenceChangeListener registerChangeListener() {
+        Xlog.i("Registering preference change listener");
+
+        SharedPreferences.OnSharedPreferenceChangeListener listener = (prefs, key) -> {
+            Xlog.i("Preferences changed, reloading them");
+            invalidate();
+            scheduleReload();
+        };
+
+        try {
+            mPreferences.registerOnSharedPreferenceChangeListener(listener);
+        } catch (RuntimeException e) {
+            // e.g. if the app is not installed, in which case
+            // we can't cache anything
+            Xlog.e("Failed to register preference change listener", e);
+            return null;
+        }
+        return listener;
+    }
+
+    private void registerBroadcastReceiver() {
+        // Clearing the app's data deletes the preferences without
+        // notifying anyone, so we have to watch for that ourselves
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null || !NEKOSMS_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                    return;
+                }
+
+                Xlog.i("App data cleared or uninstalled, reloading preferences");
+                invalidate();
+                scheduleReload();
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_DATA_CLEARED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(receiver, filter);
+    }
+}
@@ -1,35 +1,25 @@
 package com.crossbowffs.nekosms.xposed;
 
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.provider.Telephony;
-import android.telephony.SubscriptionManager;
+import android.util.Log;
 import com.crossbowffs.nekosms.BuildConfig;
-import com.crossbowffs.nekosms.consts.BroadcastConsts;
-import com.crossbowffs.nekosms.consts.PreferenceConsts;
 import com.crossbowffs.nekosms.data.SmsMessageData;
 import com.crossbowffs.nekosms.filters.SmsFilterLoader;
-import com.crossbowffs.nekosms.loader.BlockedSmsLoader;
 import com.crossbowffs.nekosms.utils.AppOpsUtils;
-import com.crossbowffs.nekosms.utils.ContactUtils;
-import com.crossbowffs.nekosms.utils.ReflectionUtils;
 import com.crossbowffs.nekosms.utils.SmsMessageUtils;
 import com.crossbowffs.nekosms.utils.StringUtils;
 import com.crossbowffs.nekosms.utils.Xlog;
-import com.crossbowffs.remotepreferences.RemotePreferenceAccessException;
-import com.crossbowffs.remotepreferences.RemotePreferences;
 
-import java.lang.reflect.Method;
 import java.lang.reflect.Constructor;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
@@ -72,21 +62,15 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
     private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
     private static final String TELEPHONY_PACKAGE = "com.android.internal.telephony";
     private static final String SMS_HANDLER_CLASS = TELEPHONY_PACKAGE + ".InboundSmsHandler";
-    private static final int MARK_DELETED = 2;
-    private static final int EVENT_BROADCAST_COMPLETE = 3;
-
-    private Context mContext;
-    private SmsFilterLoader mFilterLoader;
-    private RemotePreferences mPreferences;
-
-    private static Object callDeclaredMethod(String clsName, Object obj, String methodName, Object... args) {
-        // Unlike Xposed's built-in callMethod, this one searches
-        // for private methods as well, in the specified class
-        // (which must be assignable from the object).
-        Class<?> cls = XposedHelpers.findClass(clsName, obj.getClass().getClassLoader());
-        Method method = XposedHelpers.findMethodBestMatch(cls, methodName, args);
-        return ReflectionUtils.invoke(method, obj, args);
-    }
+
+    // There is one SMS handler per phone (i.e. per SIM), each running
+    // on its own thread, but they all share the same hook instance
+    private volatile Context mContext;
+    private volatile SmsFilterLoader mFilterLoader;
+    private volatile PreferenceCache mPreferences;
+    private volatile ContactCache mContacts;
+    private volatile SmsHandlerReflection mReflection;
+    private volatile BlockedSmsWriter mBlockedSmsWriter;
 
     private void grantWriteSmsPermissions(Context context) {
         // We need to grant OP_WRITE_SMS permissions to the app
@@ -122,105 +106,46 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         }
     }
 
-    private void deleteFromRawTable19(Object smsHandler, Object smsReceiver) {
-        Xlog.i("Removing raw SMS data from database for Android v19+");
-        callDeclaredMethod(SMS_HANDLER_CLASS, smsHandler, "deleteFromRawTable",
-            /*     deleteWhere */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhere"),
-            /* deleteWhereArgs */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhereArgs"));
-    }
-
-    private void deleteFromRawTable24(Object smsHandler, Object smsReceiver) {
-        Xlog.i("Removing raw SMS data from database for Android v24+");
-        callDeclaredMethod(SMS_HANDLER_CLASS, smsHandler, "deleteFromRawTable",
-            /*     deleteWhere */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhere"),
-            /* deleteWhereArgs */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhereArgs"),
-            /*      deleteType */ MARK_DELETED);
-    }
-
-    private void deleteFromRawTable(Object smsHandler, Object smsReceiver) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            deleteFromRawTable24(smsHandler, smsReceiver);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            deleteFromRawTable19(smsHandler, smsReceiver);
-        }
-    }
-
-    private void sendBroadcastComplete(Object smsHandler) {
-        Xlog.i("Notifying completion of SMS broadcast");
-        XposedHelpers.callMethod(smsHandler, "sendMessage",
-            /* what */ EVENT_BROADCAST_COMPLETE);
-    }
-
     private void finishSmsBroadcast(Object smsHandler, Object smsReceiver) {
         // Need to clear calling identity since dispatchIntent() might be
         // called from CarrierSmsFilterCallback.onFilterComplete(), which is
         // executing an IPC. This is required to write to the SMS database.
         long token = Binder.clearCallingIdentity();
         try {
-            deleteFromRawTable(smsHandler, smsReceiver);
+            mReflection.deleteFromRawTable(smsHandler, smsReceiver);
         } finally {
             Binder.restoreCallingIdentity(token);
         }
-        sendBroadcastComplete(smsHandler);
-    }
-
-    private void broadcastBlockedSms(Uri messageUri) {
-        // Permissions are not required here since we are only
-        // broadcasting the URI of the message, not the message
-        // contents. The provider requires permissions to read
-        // the actual message contents.
-        Intent intent = new Intent(BroadcastConsts.ACTION_RECEIVE_SMS);
-        intent.setComponent(new ComponentName(NEKOSMS_PACKAGE, BroadcastConsts.RECEIVER_NAME));
-        intent.putExtra(BroadcastConsts.EXTRA_MESSAGE, messageUri);
-        mContext.sendBroadcast(intent);
+        mReflection.sendBroadcastComplete(smsHandler);
     }
 
-    private boolean getBooleanPref(String key, boolean defValue) {
-        try {
-            return mPreferences.getBoolean(key, defValue);
-        } catch (RemotePreferenceAccessException e) {
-            Xlog.e("Failed to read preference: %s", key, e);
-            return defValue;
+    // Only loaded once "whitelist contacts" is turned on, there is
+    // no need to keep the contacts in memory otherwise
+    private ContactCache getContactCache() {
+        ContactCache contacts = mContacts;
+        if (contacts == null) {
+            synchronized (this) {
+                contacts = mContacts;
+                if (contacts == null) {
+                    contacts = new ContactCache(mContext);
+                    mContacts = contacts;
+                }
+            }
         }
+        return contacts;
     }
 
-    private void afterConstructorHandler(XC_MethodHook.MethodHookParam param) {
+    private synchronized void afterConstructorHandler(XC_MethodHook.MethodHookParam param) {
         Context context = (Context)param.args[1];
         if (mContext == null) {
-            mContext = context;
             mFilterLoader = new SmsFilterLoader(context);
-            mPreferences = new RemotePreferences(context,
-                PreferenceConsts.REMOTE_PREFS_AUTHORITY,
-                PreferenceConsts.FILE_MAIN,
-                true);
+            mPreferences = new PreferenceCache(context);
+            mBlockedSmsWriter = new BlockedSmsWriter(context);
+            mContext = context;
             grantWriteSmsPermissions(context);
         }
     }
 
-    private void putPhoneIdAndSubIdExtra(Object inboundSmsHandler, Intent intent) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-            try {
-                Object phone = XposedHelpers.getObjectField(inboundSmsHandler, "mPhone");
-                int phoneId = (Integer)XposedHelpers.callMethod(phone, "getPhoneId");
-                XposedHelpers.callStaticMethod(SubscriptionManager.class, "putPhoneIdAndSubIdExtra", intent, phoneId);
-            } catch (Exception e) {
-                Xlog.e("Failed to call putPhoneIdAndSubIdExtra", e);
-            }
-        }
-    }
-
-    private void putSubscriptionIdExtraIfValid(Intent intent, int subId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            try {
-                if ((boolean)XposedHelpers.callStaticMethod(SubscriptionManager.class, "isValidSubscriptionId", subId)) {
-                    XposedHelpers.callStaticMethod(SubscriptionManager.class, "putSubscriptionIdExtra", intent, subId);
-                }
-            } catch (Exception e) {
-                Xlog.e("Failed to call putSubscriptionIdExtra", e);
-            }
-        }
-    }
-
     private void beforeDispatchIntentHandler(XC_MethodHook.MethodHookParam param, int receiverIndex) {
         Intent intent = (Intent)param.args[0];
         String action = intent.getAction();
@@ -232,7 +157,7 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         }
 
         // Skip everything if the global killswitch is toggled
-        if (!getBooleanPref(PreferenceConsts.KEY_ENABLE, PreferenceConsts.KEY_ENABLE_DEFAULT)) {
+        if (!mPreferences.isEnabled()) {
             Xlog.i("SMS blocking disabled, exiting");
             return;
         }
@@ -241,21 +166,19 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         // so that we can read it within getMessageFromIntent (technically
         // this is not necessary; we could also just pass the subId value
         // directly as an argument)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-            putPhoneIdAndSubIdExtra(param.thisObject, intent);
-        }
+        mReflection.putPhoneIdAndSubIdExtra(param.thisObject, intent);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            putSubscriptionIdExtraIfValid(intent, (int)param.args[6]);
+            mReflection.putSubscriptionIdExtraIfValid(intent, (int)param.args[6]);
         }
 
         SmsMessageData message = SmsMessageUtils.getMessageFromIntent(intent);
         String sender = message.getSender();
         String body = message.getBody();
         Xlog.i("Received a new SMS message");
-        if (getBooleanPref(PreferenceConsts.KEY_VERBOSE_LOGGING, PreferenceConsts.KEY_VERBOSE_LOGGING_DEFAULT)) {
+        if (mPreferences.isVerboseLogging()) {
             Xlog.i("Sender: %s", StringUtils.escape(sender));
             Xlog.i("Body: %s", StringUtils.escape(body));
-        } else {
+        } else if (Xlog.isLoggable(Log.VERBOSE)) {
             Xlog.v("Sender: %s", StringUtils.escape(sender));
             Xlog.v("Body: %s", StringUtils.escape(body));
         }
@@ -263,10 +186,7 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         // Skip if "whitelist contacts" is enabled and the message
         // is from a contact (this is done in the module so we don't
         // need contact permissions on the app itself).
-        boolean allowContacts = getBooleanPref(
-            PreferenceConsts.KEY_WHITELIST_CONTACTS,
-            PreferenceConsts.KEY_WHITELIST_CONTACTS_DEFAULT);
-        if (allowContacts && ContactUtils.isContact(mContext, sender)) {
+        if (mPreferences.isWhitelistContacts() && getContactCache().isContact(sender)) {
             Xlog.i("Allowing message (contact whitelist)");
             return;
         }
@@ -275,13 +195,16 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
             return;
         }
 
-        // Order is important here! First, save a copy of the message to
-        // the blocked message list and notify everyone about it. THEN,
-        // we can delete the original. If it were the other way around,
-        // any bug in our code would cause the message to disappear. This
-        // way, the worst that can happen is that the user gets two copies.
-        Uri messageUri = BlockedSmsLoader.get().insert(mContext, message);
-        broadcastBlockedSms(messageUri);
+        // Order is important here! First, save a copy of the message
+        // to the blocked message journal (which is flushed to the
+        // blocked message list later). THEN, we can delete the original.
+        // If it were the other way around, any bug in our code would
+        // cause the message to disappear. This way, the worst that can
+        // happen is that the user gets two copies.
+        if (!mBlockedSmsWriter.write(message)) {
+            Xlog.w("Could not save blocked message, allowing it instead");
+            return;
+        }
         finishSmsBroadcast(param.thisObject, param.args[receiverIndex]);
         param.setResult(null);
     }
@@ -520,6 +443,8 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
     }
 
     private void hookSmsHandler(XC_LoadPackage.LoadPackageParam lpparam) {
+        Xlog.i("Resolving SMS handler methods and fields");
+        mReflection = new SmsHandlerReflection(lpparam.classLoader);
         hookConstructor(lpparam);
         hookDispatchIntent(lpparam);
     }
@@ -0,0 +1,135 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.Intent;
+import android.os.Build;
+import android.telephony.SubscriptionManager;
+import com.crossbowffs.nekosms.utils.ReflectionUtils;
+import com.crossbowffs.nekosms.utils.Xlog;
+import de.robv.android.xposed.XposedHelpers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+// Methods and fields of InboundSmsHandler (and friends) that we use
+// while handling a message. They are all looked up once when the
+// hooks are installed, so that a missing one shows up in the log at
+// boot rather than when the first message is blocked, and so that
+// handling a message does not have to search for them every time.
+/* package */ final class SmsHandlerReflection {
+    private static final String TELEPHONY_PACKAGE = "com.android.internal.telephony";
+    private static final String SMS_HANDLER_CLASS = TELEPHONY_PACKAGE + ".InboundSmsHandler";
+    private static final String SMS_RECEIVER_CLASS = SMS_HANDLER_CLASS + "$SmsBroadcastReceiver";
+    private static final int MARK_DELETED = 2;
+    private static final int EVENT_BROADCAST_COMPLETE = 3;
+
+    // Required to block messages
+    private final Method mDeleteFromRawTable;
+    private final Field mDeleteWhere;
+    private final Field mDeleteWhereArgs;
+    private final Method mSendMessage;
+
+    // Only used to fill in the subscription ID of the message,
+    // so these may be null if they could not be found
+    private final Field mPhone;
+    private final Method mGetPhoneId;
+    private final Method mPutPhoneIdAndSubIdExtra;
+    private final Method mIsValidSubscriptionId;
+    private final Method mPutSubscriptionIdExtra;
+
+    public SmsHandlerReflection(ClassLoader classLoader) {
+        Class<?> smsHandlerClass = XposedHelpers.findClass(SMS_HANDLER_CLASS, classLoader);
+        Class<?> smsReceiverClass = XposedHelpers.findClass(SMS_RECEIVER_CLASS, classLoader);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mDeleteFromRawTable = XposedHelpers.findMethodExact(smsHandlerClass, "deleteFromRawTable",
+                /*     deleteWhere */ String.class,
+                /* deleteWhereArgs */ String[].class,
+                /*      deleteType */ int.class);
+        } else {
+            mDeleteFromRawTable = XposedHelpers.findMethodExact(smsHandlerClass, "deleteFromRawTable",
+                /*     deleteWhere */ String.class,
+                /* deleteWhereArgs */ String[].class);
+        }
+        mDeleteWhere = XposedHelpers.findField(smsReceiverClass, "mDeleteWhere");
+        mDeleteWhereArgs = XposedHelpers.findField(smsReceiverClass, "mDeleteWhereArgs");
+        mSendMessage = XposedHelpers.findMethodBestMatch(smsHandlerClass, "sendMessage",
+            /* what */ int.class);
+
+        Field phone = null;
+        Method getPhoneId = null;
+        Method putPhoneIdAndSubIdExtra = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            try {
+                phone = XposedHelpers.findField(smsHandlerClass, "mPhone");
+                getPhoneId = XposedHelpers.findMethodBestMatch(phone.getType(), "getPhoneId");
+                putPhoneIdAndSubIdExtra = XposedHelpers.findMethodExact(SubscriptionManager.class,
+                    "putPhoneIdAndSubIdExtra", Intent.class, int.class);
+            } catch (Throwable e) {
+                Xlog.e("Failed to find putPhoneIdAndSubIdExtra", e);
+                phone = null;
+            }
+        }
+        mPhone = phone;
+        mGetPhoneId = getPhoneId;
+        mPutPhoneIdAndSubIdExtra = putPhoneIdAndSubIdExtra;
+
+        Method isValidSubscriptionId = null;
+        Method putSubscriptionIdExtra = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                isValidSubscriptionId = XposedHelpers.findMethodExact(SubscriptionManager.class,
+                    "isValidSubscriptionId", int.class);
+                putSubscriptionIdExtra = XposedHelpers.findMethodExact(SubscriptionManager.class,
+                    "putSubscriptionIdExtra", Intent.class, int.class);
+            } catch (Throwable e) {
+                Xlog.e("Failed to find putSubscriptionIdExtra", e);
+                isValidSubscriptionId = null;
+            }
+        }
+        mIsValidSubscriptionId = isValidSubscriptionId;
+        mPutSubscriptionIdExtra = putSubscriptionIdExtra;
+    }
+
+    public void deleteFromRawTable(Object smsHandler, Object smsReceiver) {
+        Object deleteWhere = ReflectionUtils.getFieldValue(mDeleteWhere, smsReceiver);
+        Object deleteWhereArgs = ReflectionUtils.getFieldValue(mDeleteWhereArgs, smsReceiver);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Xlog.i("Removing raw SMS data from database for Android v24+");
+            ReflectionUtils.invoke(mDeleteFromRawTable, smsHandler, deleteWhere, deleteWhereArgs, MARK_DELETED);
+        } else {
+            Xlog.i("Removing raw SMS data from database for Android v19+");
+            ReflectionUtils.invoke(mDeleteFromRawTable, smsHandler, deleteWhere, deleteWhereArgs);
+        }
+    }
+
+    public void sendBroadcastComplete(Object smsHandler) {
+        Xlog.i("Notifying completion of SMS broadcast");
+        ReflectionUtils.invoke(mSendMessage, smsHandler, EVENT_BROADCAST_COMPLETE);
+    }
+
+    public void putPhoneIdAndSubIdExtra(Object smsHandler, Intent intent) {
+        if (mPhone == null) {
+            return;
+        }
+        try {
+            Object phone = ReflectionUtils.getFieldValue(mPhone, smsHandler);
+            int phoneId = (Integer)ReflectionUtils.invoke(mGetPhoneId, phone);
+            ReflectionUtils.invoke(mPutPhoneIdAndSubIdExtra, null, intent, phoneId);
+        } catch (Exception e) {
+            Xlog.e("Failed to call putPhoneIdAndSubIdExtra", e);
+        }
+    }
+
+    public void putSubscriptionIdExtraIfValid(Intent intent, int subId) {
+        if (mIsValidSubscriptionId == null) {
+            return;
+        }
+        try {
+            if ((boolean)ReflectionUtils.invoke(mIsValidSubscriptionId, null, subId)) {
+                ReflectionUtils.invoke(mPutSubscriptionIdExtra, null, intent, subId);
+            }
+        } catch (Exception e) {
+            Xlog.e("Failed to call putSubscriptionIdExtra", e);
+        }
+    }
+}
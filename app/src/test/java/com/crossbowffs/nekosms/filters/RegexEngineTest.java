@@ -0,0 +1,298 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterField;
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.utils.StringUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Checks the regex engine (RegexParser, RegexProgram, RegexSetIndex)
+// and the glob matcher in WildcardFilterPattern against the engines
+// they replaced: java.util.regex, and wildcards translated to a regex
+// the way they used to be. Patterns and messages are random, built
+// from characters where case folding is known to be tricky, and are
+// NFC normalized like the real ones.
+//
+// Case insensitive matching folds each character to
+// toLowerCase(toUpperCase(c)), which is what the JDK's java.util.regex
+// does for single characters with UNICODE_CASE. ICU (which backs
+// java.util.regex on Android) uses Unicode simple case folding
+// instead, which differs for the Turkish dotted and dotless i: we fold
+// both U+0130 and U+0131 to 'i', so (?i)i matches them, while ICU
+// folds neither. The JDK also doesn't fold character class ranges, it
+// checks a character's upper and lower case separately, so (?i)[A-Z]
+// doesn't match U+0130 there (nor in ICU) but does here. The Turkish
+// i's are therefore left out of the random tests, and testCaseFolding
+// checks how they are matched instead.
+//
+// The predefined classes (\w, \d, \b) follow ICU, so the JDK reference
+// uses UNICODE_CHARACTER_CLASS to match the same characters.
+@RunWith(RobolectricTestRunner.class)
+public class RegexEngineTest {
+    private static final int ITERATIONS = 2000;
+    private static final int TEXTS_PER_PATTERN = 20;
+    private static final int PATTERNS_PER_SET = 8;
+
+    // Includes characters whose case folding is not just ASCII
+    // lowercasing, and a character that NFC normalization composes
+    private static final String[] TEXT_CHARS = {
+        "a", "b", "A", "B", "k", "K", "s", "S", "i", "I", "1", " ", ".", "\n", "\r",
+        "\u212A", // Kelvin sign
+        "\u017F", // Long s
+        "\u00DF", // Sharp s
+        "\u03C3", "\u03C2", "\u03A3", // Sigma, final sigma, capital sigma
+        "\u00E9", "\u00C9", "e\u0301", // Precomposed and decomposed e with acute
+    };
+
+    private static final String[] REGEX_ATOMS = {
+        "a", "b", "A", "B", "k", "K", "s", "i", "I", "\u03C3", "\u00E9", "e\u0301",
+        ".", "\\d", "\\w", "\\s", "\\W", "\\.", "\\n", "[ab]", "[^a]", "[a-c]", "[A-Z]", "[i-k]",
+        "\\b", "\\B", "^", "$", " ", "(?i)a", "(?i)k", "(a|b)", "(ab|a)", "(?:b)",
+    };
+
+    private static final String[] GLOB_CHARS = {
+        "*", "?", "a", "A", "b", "k", "K", "i", "I", "\u00E9", "e\u0301", ".", " ", "\n",
+    };
+
+    private final Random mRandom = new Random(42);
+
+    private String randomString(String[] chars, int maxLength) {
+        int length = mRandom.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            sb.append(chars[mRandom.nextInt(chars.length)]);
+        }
+        return Normalizer.normalize(sb.toString(), Normalizer.Form.NFC);
+    }
+
+    private String randomRegex(int depth) {
+        StringBuilder sb = new StringBuilder();
+        int count = 1 + mRandom.nextInt(4);
+        for (int i = 0; i < count; ++i) {
+            String atom;
+            boolean group = depth > 0 && mRandom.nextInt(4) == 0;
+            if (group) {
+                atom = "(" + randomRegex(depth - 1) + (mRandom.nextBoolean() ? "|" + randomRegex(depth - 1) : "") + ")";
+            } else {
+                atom = REGEX_ATOMS[mRandom.nextInt(REGEX_ATOMS.length)];
+            }
+            sb.append(atom);
+            if (atom.equals("^") || atom.equals("$") || atom.startsWith("\\b") || atom.startsWith("\\B") || atom.startsWith("(?i)")) {
+                continue;
+            }
+            // Nested unbounded loops can make java.util.regex backtrack
+            // for ages, so generated groups are only repeated a bounded
+            // number of times
+            switch (mRandom.nextInt(8) + (group ? 2 : 0)) {
+            case 0:
+                sb.append("*");
+                break;
+            case 1:
+                sb.append("+");
+                break;
+            case 2:
+                sb.append("?");
+                break;
+            case 3:
+                sb.append("{1,2}");
+                break;
+            case 4:
+                sb.append("*?");
+                break;
+            }
+        }
+        return Normalizer.normalize(sb.toString(), Normalizer.Form.NFC);
+    }
+
+    private String randomText() {
+        return randomString(TEXT_CHARS, 10);
+    }
+
+    private static boolean javaFind(String regex, boolean caseSensitive, String text) {
+        int flags = Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS;
+        if (!caseSensitive) {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        return Pattern.compile(regex, flags).matcher(text).find();
+    }
+
+    // How wildcards were matched before they had their own matcher
+    private static String wildcardToRegex(String wildcardString) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('^');
+        for (int i = 0; i < wildcardString.length(); ++i) {
+            char c = wildcardString.charAt(i);
+            if (c == '*') {
+                sb.append(".*");
+            } else if (c == '?') {
+                sb.append('.');
+            } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                sb.append('\\');
+                sb.append(c);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('$');
+        return sb.toString();
+    }
+
+    // Returns which of the programs' patterns match the text. Each
+    // pattern gets its own filter, so every match is a candidate.
+    private static boolean[] searchAll(RegexProgram program, int patternCount, String text) {
+        int[] patternFilters = new int[patternCount];
+        int[] requiredMatches = new int[patternCount];
+        int[] ranks = new int[patternCount];
+        for (int i = 0; i < patternCount; ++i) {
+            patternFilters[i] = i;
+            requiredMatches[i] = 1;
+            ranks[i] = i;
+        }
+        MatchState state = new MatchState(patternFilters, requiredMatches);
+        state.reset(text, text);
+        new RegexSetIndex(program).search(text, state);
+
+        boolean[] matches = new boolean[patternCount];
+        int[] candidates = state.getSortedCandidateRanks(ranks);
+        for (int i = 0; i < state.getCandidateCount(); ++i) {
+            matches[candidates[i]] = true;
+        }
+        return matches;
+    }
+
+    private static boolean search(RegexNode node, String text) {
+        RegexProgram program = new RegexProgram.Builder().add(node, 0).build();
+        return searchAll(program, 1, text)[0];
+    }
+
+    private static WildcardFilterPattern newWildcardPattern(String glob, boolean caseSensitive) {
+        SmsFilterPatternData data = new SmsFilterPatternData(SmsFilterField.BODY)
+            .setMode(SmsFilterMode.WILDCARD)
+            .setPattern(glob)
+            .setCaseSensitive(caseSensitive);
+        return new WildcardFilterPattern(data);
+    }
+
+    @Test
+    public void testRegexMatchesJavaRegex() {
+        int tested = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            String regex = randomRegex(2);
+            boolean caseSensitive = mRandom.nextBoolean();
+            RegexNode node;
+            try {
+                node = RegexParser.parse(regex, !caseSensitive);
+            } catch (UnsupportedRegexException e) {
+                continue;
+            }
+            tested++;
+            for (int j = 0; j < TEXTS_PER_PATTERN; ++j) {
+                String text = randomText();
+                assertEquals("/" + StringUtils.escape(regex) + "/ caseSensitive=" + caseSensitive + " on " + StringUtils.escape(text),
+                    javaFind(regex, caseSensitive, text), search(node, text));
+            }
+        }
+        assertTrue("Too few supported patterns: " + tested, tested > ITERATIONS / 2);
+    }
+
+    @Test
+    public void testRegexSetMatchesJavaRegex() {
+        // Patterns in the same program share DFA states, so check
+        // that they don't affect each other's results
+        for (int i = 0; i < ITERATIONS / PATTERNS_PER_SET; ++i) {
+            List<String> regexes = new ArrayList<>();
+            List<Boolean> caseSensitives = new ArrayList<>();
+            RegexProgram.Builder builder = new RegexProgram.Builder();
+            while (regexes.size() < PATTERNS_PER_SET) {
+                String regex = randomRegex(2);
+                boolean caseSensitive = mRandom.nextBoolean();
+                try {
+                    builder.add(RegexParser.parse(regex, !caseSensitive), regexes.size());
+                } catch (UnsupportedRegexException e) {
+                    continue;
+                }
+                regexes.add(regex);
+                caseSensitives.add(caseSensitive);
+            }
+            RegexProgram program = builder.build();
+            for (int j = 0; j < TEXTS_PER_PATTERN; ++j) {
+                String text = randomText();
+                boolean[] matches = searchAll(program, regexes.size(), text);
+                for (int k = 0; k < regexes.size(); ++k) {
+                    assertEquals("/" + StringUtils.escape(regexes.get(k)) + "/ on " + StringUtils.escape(text),
+                        javaFind(regexes.get(k), caseSensitives.get(k), text), matches[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWildcardMatchesOldRegexTranslation() {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            String glob = randomString(GLOB_CHARS, 6);
+            if (glob.isEmpty()) {
+                continue;
+            }
+            boolean caseSensitive = mRandom.nextBoolean();
+            WildcardFilterPattern pattern = newWildcardPattern(glob, caseSensitive);
+            RegexNode node = pattern.toRegexNode();
+            String regex = wildcardToRegex(glob);
+            for (int j = 0; j < TEXTS_PER_PATTERN; ++j) {
+                String text = randomText();
+                boolean expected = javaFind(regex, caseSensitive, text);
+                String message = "'" + StringUtils.escape(glob) + "' caseSensitive=" + caseSensitive + " on " + StringUtils.escape(text);
+                assertEquals(message, expected, pattern.match("", text));
+                assertEquals(message, expected, search(node, text));
+            }
+        }
+    }
+
+    @Test
+    public void testCaseFolding() {
+        RegexNode k = RegexParser.parse("k", true);
+        assertTrue(search(k, "K"));
+        assertTrue(search(k, "\u212A"));
+        assertFalse(search(RegexParser.parse("k", false), "\u212A"));
+
+        RegexNode sigma = RegexParser.parse("\u03C3", true);
+        assertTrue(search(sigma, "\u03A3"));
+        assertTrue(search(sigma, "\u03C2"));
+
+        // Unlike ICU, both Turkish i's fold to a plain i (see above),
+        // in character classes too
+        RegexNode i = RegexParser.parse("i", true);
+        assertTrue(search(i, "\u0130"));
+        assertTrue(search(i, "\u0131"));
+        assertTrue(javaFind("i", false, "\u0130"));
+        assertTrue(javaFind("i", false, "\u0131"));
+        assertTrue(search(RegexParser.parse("[A-Z]", true), "\u0130"));
+        assertTrue(search(RegexParser.parse("[a-z]", true), "\u0131"));
+        assertFalse(search(RegexParser.parse("[A-Z]", false), "\u0130"));
+        assertTrue(newWildcardPattern("\u0131*", false).match("", "I"));
+        assertTrue(newWildcardPattern("?", false).match("", "\u0130"));
+        assertFalse(newWildcardPattern("i", true).match("", "\u0131"));
+    }
+
+    @Test
+    public void testNormalizedInput() {
+        // Patterns and messages are both NFC normalized before matching,
+        // so a decomposed character matches its precomposed form
+        String pattern = Normalizer.normalize("cafe\u0301", Normalizer.Form.NFC);
+        assertTrue(search(RegexParser.parse(pattern, false), "caf\u00E9"));
+        String text = Normalizer.normalize("cafe\u0301", Normalizer.Form.NFC);
+        assertTrue(search(RegexParser.parse("caf\u00E9$", false), text));
+        assertTrue(newWildcardPattern("cafe\u0301", false).match("", "CAF\u00C9"));
+    }
+}
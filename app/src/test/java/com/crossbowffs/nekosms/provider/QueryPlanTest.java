@@ -0,0 +1,96 @@
+package com.crossbowffs.nekosms.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import androidx.test.core.app.ApplicationProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Checks that the queries the app runs most often are answered from
+// the blocked message indexes, rather than scanning and sorting the
+// whole table. The queries are built the same way as in the provider
+// and BlockedSmsLoader.
+@RunWith(RobolectricTestRunner.class)
+public class QueryPlanTest {
+    private static final String TIME_SENT_INDEX = BlockedMessages.TABLE + "_time_sent_idx";
+    private static final String UNSEEN_INDEX = BlockedMessages.TABLE + "_unseen_idx";
+    private static final String TEMP_SORT = "TEMP B-TREE";
+    private static final String VIRTUAL_TABLE = "VIRTUAL TABLE";
+
+    private DatabaseHelper mDatabaseHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabaseHelper = new DatabaseHelper(ApplicationProvider.getApplicationContext());
+        mDatabase = mDatabaseHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabaseHelper.close();
+    }
+
+    private String explain(String sql) {
+        StringBuilder plan = new StringBuilder();
+        try (Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, null)) {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumn)).append('\n');
+            }
+        }
+        return plan.toString();
+    }
+
+    private static String buildViewQuery(String where) {
+        return SQLiteQueryBuilder.buildQueryString(false, DatabaseHelper.BLOCKED_MESSAGES_VIEW,
+            BlockedMessages.ALL, where, null, null, BlockedMessages.TIME_SENT + " DESC", null);
+    }
+
+    @Test
+    public void testMessageListUsesTimeSentIndex() {
+        String plan = explain(buildViewQuery(null));
+        assertTrue(plan, plan.contains(TIME_SENT_INDEX));
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    @Test
+    public void testQueryUnseenUsesUnseenIndex() {
+        String plan = explain(buildViewQuery(BlockedMessages.SEEN + "=0"));
+        assertTrue(plan, plan.contains(UNSEEN_INDEX));
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    @Test
+    public void testMarkAllSeenUsesUnseenIndex() {
+        String plan = explain(
+            "UPDATE " + BlockedMessages.TABLE +
+            " SET " + BlockedMessages.SEEN + "=1" +
+            " WHERE " + BlockedMessages.SEEN + "=0");
+        assertTrue(plan, plan.contains(UNSEEN_INDEX));
+    }
+
+    @Test
+    public void testSearchUsesFullTextIndexes() {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(DatabaseHelper.BLOCKED_MESSAGES_VIEW);
+        DatabaseProvider.appendSearchWhere(queryBuilder, "cat 1234");
+        String plan = explain(queryBuilder.buildQuery(BlockedMessages.ALL, null, null, null,
+            BlockedMessages.TIME_SENT + " DESC", null));
+        assertTrue(plan, plan.contains(DatabaseHelper.MESSAGE_BODIES_FTS_TABLE));
+        assertTrue(plan, plan.contains(DatabaseHelper.BLOCKED_MESSAGES_SENDER_FTS_TABLE));
+
+        // The only tables scanned should be the full-text indexes
+        for (String line : plan.split("\n")) {
+            assertFalse(plan, line.contains("SCAN") && !line.contains(VIRTUAL_TABLE));
+        }
+    }
+}